@@ -274,6 +274,7 @@ public class ExprChecker implements NQJExpr.Matcher<Type>, NQJExprL.Matcher<Type
       NQJVarDecl var = clsCtxt.lookupField(fieldAccess.getFieldName());
 
       if (var != null) {
+        fieldAccess.setVariableDeclaration(var);
         return analysis.type(var.getType());
       }
 
@@ -295,6 +296,7 @@ public class ExprChecker implements NQJExpr.Matcher<Type>, NQJExprL.Matcher<Type
 
             // if field is declared inside the class
             if (field != null) {
+              fieldAccess.setVariableDeclaration(field);
               return analysis.type(field.getType());
             }
           }
@@ -308,6 +310,7 @@ public class ExprChecker implements NQJExpr.Matcher<Type>, NQJExprL.Matcher<Type
         NQJVarDecl field = context.lookupField(fieldAccess.getFieldName());
 
         if (field != null) {
+          fieldAccess.setVariableDeclaration(field);
           return analysis.type(field.getType());
         }
       }
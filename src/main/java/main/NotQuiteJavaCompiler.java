@@ -5,11 +5,28 @@ import analysis.TypeError;
 import frontend.NQJFrontend;
 import frontend.SyntaxError;
 import minillvm.ast.Prog;
+import minillvm.optimization.BoundsCheckElimination;
+import minillvm.optimization.ConstantPropagation;
+import minillvm.optimization.DeadCodeElimination;
+import minillvm.optimization.Devirtualization;
+import minillvm.optimization.EscapeAnalysis;
+import minillvm.optimization.GlobalValueNumbering;
+import minillvm.optimization.Inliner;
+import minillvm.optimization.LoopInvariantCodeMotion;
+import minillvm.optimization.Mem2Reg;
+import minillvm.optimization.NullCheckElimination;
+import minillvm.optimization.PassManager;
+import minillvm.optimization.ShadowStack;
+import minillvm.optimization.SimplifyCfg;
+import minillvm.optimization.TailRecursionElimination;
+import minillvm.printer.Allocator;
+import minillvm.printer.PrettyPrinter;
 import notquitejava.ast.NQJProgram;
 import translation.Translator;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -24,19 +41,21 @@ public class NotQuiteJavaCompiler {
   private Prog llvmProg;
   private Analysis analysis;
   private NQJFrontend frontend;
+  private boolean optimize = false;
+  private boolean verifyPasses = false;
+  private boolean timePasses = false;
+  private Allocator allocator = Allocator.LIBC;
 
   /**
    * Entry main function.
    */
   public static void main(String[] args) throws Exception {
-    String fileName;
-    if (args.length > 0) {
-      fileName = args[0];
-    } else {
+    NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+    String fileName = compiler.parseArguments(args);
+    if (fileName == null) {
       System.out.println("Enter a filename: ");
       fileName = new Scanner(System.in).nextLine();
     }
-    NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
     File inputFile = new File(fileName);
     compiler.compileFile(inputFile);
 
@@ -49,6 +68,33 @@ public class NotQuiteJavaCompiler {
     compiler.compileLlvmCode(inputFile.getName());
   }
 
+  /**
+   * Applies the command line options and returns the file name, or null if there is none.
+   */
+  public String parseArguments(String... args) {
+    String fileName = null;
+    for (String arg : args) {
+      if (arg.equals("-O")) {
+        setOptimize(true);
+      } else if (arg.equals("-O0")) {
+        setOptimize(false);
+      } else if (arg.equals("-verify-passes")) {
+        verifyPasses = true;
+      } else if (arg.equals("-time-passes")) {
+        timePasses = true;
+      } else if (arg.equals("-allocator=arena")) {
+        setAllocator(Allocator.ARENA);
+      } else if (arg.equals("-allocator=libc")) {
+        setAllocator(Allocator.LIBC);
+      } else if (arg.equals("-gc")) {
+        setAllocator(Allocator.GC);
+      } else {
+        fileName = arg;
+      }
+    }
+    return fileName;
+  }
+
   /**
    * Compiles a file.
    */
@@ -87,6 +133,62 @@ public class NotQuiteJavaCompiler {
     // TODO you can pass analysis results to your translator here:
     Translator translator = new Translator(javaProgram);
     llvmProg = translator.translate();
+
+    if (optimize) {
+      PassManager passes = createPasses();
+      passes.setVerify(verifyPasses);
+      passes.setTiming(timePasses);
+      passes.run(llvmProg);
+      if (timePasses) {
+        passes.printTimings(System.err);
+      }
+    }
+    if (allocator == Allocator.GC) {
+      // the frames of the collector are added to the optimized program
+      PassManager gcPasses = new PassManager().add(new ShadowStack());
+      gcPasses.setVerify(verifyPasses);
+      gcPasses.run(llvmProg);
+    }
+  }
+
+  /**
+   * The optimization pipeline run on translated programs.
+   */
+  private PassManager createPasses() {
+    return new PassManager()
+        .add(new Mem2Reg())
+        .add(new Devirtualization())
+        .add(new TailRecursionElimination())
+        .add(new Inliner())
+        .add(new EscapeAnalysis())
+        .add(new Mem2Reg())
+        .add(new ConstantPropagation())
+        .add(new SimplifyCfg())
+        .add(new GlobalValueNumbering())
+        .add(new NullCheckElimination())
+        .add(new BoundsCheckElimination())
+        .add(new LoopInvariantCodeMotion())
+        .add(new DeadCodeElimination())
+        .add(new SimplifyCfg());
+  }
+
+  /**
+   * Enables or disables the optimizations on the translated program, disabled by default.
+   */
+  public void setOptimize(boolean optimize) {
+    this.optimize = optimize;
+  }
+
+  /**
+   * Selects the runtime serving the allocations of the compiled program, libc by default.
+   * Must be set before compiling, as the garbage collector needs a prepared program.
+   */
+  public void setAllocator(Allocator allocator) {
+    this.allocator = allocator;
+  }
+
+  public Allocator getAllocator() {
+    return allocator;
   }
 
   public NQJProgram getJavaProgram() {
@@ -116,18 +218,33 @@ public class NotQuiteJavaCompiler {
    */
   private void compileLlvmCode(String name) throws IOException, InterruptedException {
     File llvmOutFile = new File(name + ".ll");
-    Files.writeString(llvmOutFile.toPath(), llvmProg.toString());
+    Files.writeString(llvmOutFile.toPath(),
+        PrettyPrinter.programToString(llvmProg, allocator));
 
     // llvm -> bitcode
     executeCommand("llvm-as", llvmOutFile.getAbsolutePath());
+    File llvmBc = new File(name + ".bc");
+    if (allocator == Allocator.ARENA) {
+      // llc does not inline, the fast path of the allocator has to be inlined before
+      executeCommand("opt", "-passes=always-inline",
+          "-o", llvmBc.getAbsolutePath(), llvmBc.getAbsolutePath());
+    }
 
     //  bitcode -> object file
-    File llvmBc = new File(name + ".bc");
     executeCommand("llc", "-filetype=obj", llvmBc.getAbsolutePath());
 
     // link object file
     File objFile = new File(name + ".o");
-    executeCommand("clang", "-o", name + ".exe", objFile.getAbsolutePath());
+    if (allocator == Allocator.GC) {
+      File runtime = new File(name + "_gc.c");
+      try (InputStream in = getClass().getResourceAsStream("/runtime/nqj_gc.c")) {
+        Files.copy(in, runtime.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      executeCommand("clang", "-O2", "-o", name + ".exe", objFile.getAbsolutePath(),
+          runtime.getAbsolutePath());
+    } else {
+      executeCommand("clang", "-o", name + ".exe", objFile.getAbsolutePath());
+    }
   }
 
   private void executeCommand(String... args) throws IOException, InterruptedException {
@@ -308,11 +308,27 @@ public class Checks {
       }
 
 
+      @Override
+      public void case_Select(Select select) {
+        expectType(select.getCondition(), Ast.TypeBool());
+        Type trueType = getType(select.getIfTrue());
+        Type falseType = getType(select.getIfFalse());
+        if (!trueType.equalsType(falseType)) {
+          error(select, "Both values of select must be of same type, got "
+              + trueType + " and " + falseType);
+        }
+      }
+
       @Override
       public void case_Alloc(Alloc alloc) {
         // nothing to check
       }
 
+      @Override
+      public void case_AllocZeroed(AllocZeroed alloc) {
+        // nothing to check
+      }
+
       @Override
       public void case_Call(Call call) {
         Type funcType = getType(call.getFunction());
@@ -0,0 +1,106 @@
+package minillvm.analysis;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Control flow helper.
+ */
+public class ControlFlow {
+
+  /**
+   * Get the successors of a basic block.
+   * A branch with equal targets gives the same successor twice, like it gives two predecessors.
+   */
+  public static List<BasicBlock> getSuccessors(BasicBlock block) {
+    Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+    if (t.isPresent() && t.get() instanceof Jump) {
+      return List.of(((Jump) t.get()).getLabel());
+    } else if (t.isPresent() && t.get() instanceof Branch) {
+      Branch branch = (Branch) t.get();
+      return List.of(branch.getIfTrueLabel(), branch.getIfFalseLabel());
+    }
+    return List.of();
+  }
+
+  /**
+   * Get the predecessors of all basic blocks of a procedure.
+   */
+  public static Map<BasicBlock, List<BasicBlock>> getPredecessors(Proc proc) {
+    Map<BasicBlock, List<BasicBlock>> result = new HashMap<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      result.put(block, new ArrayList<>());
+    }
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (BasicBlock successor : getSuccessors(block)) {
+        result.computeIfAbsent(successor, b -> new ArrayList<>()).add(block);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get all blocks reachable from the entry block of a procedure.
+   */
+  public static Set<BasicBlock> getReachableBlocks(Proc proc) {
+    Set<BasicBlock> reachable = new HashSet<>();
+    if (proc.getBasicBlocks().isEmpty()) {
+      return reachable;
+    }
+    Deque<BasicBlock> todo = new ArrayDeque<>();
+    todo.push(proc.getBasicBlocks().get(0));
+    while (!todo.isEmpty()) {
+      BasicBlock block = todo.pop();
+      if (reachable.add(block)) {
+        for (BasicBlock successor : getSuccessors(block)) {
+          todo.push(successor);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  /**
+   * Removes all blocks, which are not reachable from the entry block of a procedure,
+   * together with the phi node choices coming from them. Returns whether blocks were removed.
+   */
+  public static boolean removeUnreachableBlocks(Proc proc) {
+    Set<BasicBlock> reachable = getReachableBlocks(proc);
+    BasicBlockList blocks = proc.getBasicBlocks();
+    if (reachable.size() == blocks.size()) {
+      return false;
+    }
+    for (int i = blocks.size() - 1; i >= 0; i--) {
+      if (!reachable.contains(blocks.get(i))) {
+        blocks.remove(i);
+      }
+    }
+    for (BasicBlock block : blocks) {
+      for (PhiNode phi : block.getPhiNodes()) {
+        PhiNodeChoiceList choices = phi.getChoices();
+        for (int i = choices.size() - 1; i >= 0; i--) {
+          if (!reachable.contains(choices.get(i).getLabel())) {
+            choices.remove(i);
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes the phi node choices of a block for one edge coming from the given predecessor.
+   */
+  public static void removePhiChoices(BasicBlock block, BasicBlock predecessor) {
+    for (PhiNode phi : block.getPhiNodes()) {
+      PhiNodeChoiceList choices = phi.getChoices();
+      for (int i = choices.size() - 1; i >= 0; i--) {
+        if (choices.get(i).getLabel() == predecessor) {
+          choices.remove(i);
+          break;
+        }
+      }
+    }
+  }
+}
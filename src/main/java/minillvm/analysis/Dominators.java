@@ -0,0 +1,278 @@
+package minillvm.analysis;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Dominator tree and dominance frontiers of a procedure.
+ * Computed with the algorithm of Cooper, Harvey and Kennedy,
+ * "A Simple, Fast Dominance Algorithm". Only blocks reachable from the entry are considered.
+ *
+ * <p>Blocks are numbered in reverse postorder and all computations work on these numbers,
+ * so that procedures with many thousands of blocks are handled quickly.
+ */
+public class Dominators {
+
+  private final BasicBlock[] blocks;
+  private final Map<BasicBlock, Integer> index = new IdentityHashMap<>();
+  private final int[] idom;
+  private final int[][] children;
+  // preorder and postorder numbers in the dominator tree, for constant time dominance queries
+  private final int[] treeEnter;
+  private final int[] treeExit;
+  private final Map<BasicBlock, List<BasicBlock>> predecessors;
+  private List<Set<BasicBlock>> frontiers;
+
+  /**
+   * Computes the dominator tree of the given procedure.
+   */
+  public Dominators(Proc proc) {
+    this(proc, ControlFlow.getPredecessors(proc));
+  }
+
+  /**
+   * Computes the dominator tree of the given procedure with already known predecessors.
+   */
+  public Dominators(Proc proc, Map<BasicBlock, List<BasicBlock>> predecessors) {
+    this.predecessors = predecessors;
+    blocks = computeReversePostorder(proc);
+    for (int i = 0; i < blocks.length; i++) {
+      index.put(blocks[i], i);
+    }
+    idom = computeIdoms();
+    children = computeChildren();
+    treeEnter = new int[blocks.length];
+    treeExit = new int[blocks.length];
+    numberTree();
+  }
+
+  private static BasicBlock[] computeReversePostorder(Proc proc) {
+    if (proc.getBasicBlocks().isEmpty()) {
+      return new BasicBlock[0];
+    }
+    // iterative depth first search, procs can be too large for recursion
+    BasicBlock entry = proc.getBasicBlocks().get(0);
+    Set<BasicBlock> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+    Deque<BasicBlock> path = new ArrayDeque<>();
+    List<BasicBlock> postorder = new ArrayList<>();
+    visited.add(entry);
+    stack.push(ControlFlow.getSuccessors(entry).iterator());
+    path.push(entry);
+    while (!stack.isEmpty()) {
+      Iterator<BasicBlock> it = stack.peek();
+      if (it.hasNext()) {
+        BasicBlock next = it.next();
+        if (visited.add(next)) {
+          stack.push(ControlFlow.getSuccessors(next).iterator());
+          path.push(next);
+        }
+      } else {
+        stack.pop();
+        postorder.add(path.pop());
+      }
+    }
+
+    BasicBlock[] result = new BasicBlock[postorder.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = postorder.get(result.length - 1 - i);
+    }
+    return result;
+  }
+
+  private int[] computeIdoms() {
+    int n = blocks.length;
+    int[][] preds = new int[n][];
+    for (int i = 0; i < n; i++) {
+      List<BasicBlock> ps = predecessors.getOrDefault(blocks[i], List.of());
+      int[] p = new int[ps.size()];
+      int count = 0;
+      for (BasicBlock pred : ps) {
+        Integer pi = index.get(pred);
+        if (pi != null) {
+          // ignore unreachable predecessors
+          p[count++] = pi;
+        }
+      }
+      preds[i] = Arrays.copyOf(p, count);
+    }
+
+    int[] doms = new int[n];
+    Arrays.fill(doms, -1);
+    if (n == 0) {
+      return doms;
+    }
+    doms[0] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int b = 1; b < n; b++) {
+        int newIdom = -1;
+        for (int p : preds[b]) {
+          if (doms[p] == -1) {
+            // not processed yet
+            continue;
+          }
+          newIdom = newIdom == -1 ? p : intersect(doms, p, newIdom);
+        }
+        if (doms[b] != newIdom) {
+          doms[b] = newIdom;
+          changed = true;
+        }
+      }
+    }
+    return doms;
+  }
+
+  private static int intersect(int[] doms, int a, int b) {
+    while (a != b) {
+      while (a > b) {
+        a = doms[a];
+      }
+      while (b > a) {
+        b = doms[b];
+      }
+    }
+    return a;
+  }
+
+  private int[][] computeChildren() {
+    int n = blocks.length;
+    int[] count = new int[n];
+    for (int b = 1; b < n; b++) {
+      count[idom[b]]++;
+    }
+    int[][] result = new int[n][];
+    for (int b = 0; b < n; b++) {
+      result[b] = new int[count[b]];
+      count[b] = 0;
+    }
+    for (int b = 1; b < n; b++) {
+      int d = idom[b];
+      result[d][count[d]++] = b;
+    }
+    return result;
+  }
+
+  private void numberTree() {
+    if (blocks.length == 0) {
+      return;
+    }
+    int counter = 0;
+    // each entry is a block and the position of its next child to visit
+    Deque<int[]> stack = new ArrayDeque<>();
+    stack.push(new int[] {0, 0});
+    treeEnter[0] = counter++;
+    while (!stack.isEmpty()) {
+      int[] top = stack.peek();
+      int b = top[0];
+      if (top[1] < children[b].length) {
+        int child = children[b][top[1]++];
+        treeEnter[child] = counter++;
+        stack.push(new int[] {child, 0});
+      } else {
+        treeExit[b] = counter++;
+        stack.pop();
+      }
+    }
+  }
+
+  private int indexOf(BasicBlock block) {
+    Integer i = index.get(block);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * Checks whether the block is reachable from the entry block.
+   */
+  public boolean isReachable(BasicBlock block) {
+    return index.containsKey(block);
+  }
+
+  /**
+   * Returns the reachable blocks in reverse postorder, starting with the entry block.
+   */
+  public List<BasicBlock> getReversePostorder() {
+    return Collections.unmodifiableList(Arrays.asList(blocks));
+  }
+
+  /**
+   * Returns the immediate dominator of a block, or null for the entry block.
+   */
+  public BasicBlock getImmediateDominator(BasicBlock block) {
+    int b = indexOf(block);
+    if (b <= 0) {
+      return null;
+    }
+    return blocks[idom[b]];
+  }
+
+  /**
+   * Returns the blocks immediately dominated by the given block.
+   */
+  public List<BasicBlock> getChildren(BasicBlock block) {
+    int b = indexOf(block);
+    if (b < 0) {
+      return List.of();
+    }
+    List<BasicBlock> result = new ArrayList<>(children[b].length);
+    for (int c : children[b]) {
+      result.add(blocks[c]);
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether block a dominates block b. Every block dominates itself.
+   */
+  public boolean dominates(BasicBlock a, BasicBlock b) {
+    int ia = indexOf(a);
+    int ib = indexOf(b);
+    if (ia < 0 || ib < 0) {
+      return false;
+    }
+    return treeEnter[ia] <= treeEnter[ib] && treeExit[ib] <= treeExit[ia];
+  }
+
+  /**
+   * Checks whether block a dominates block b and is different from b.
+   */
+  public boolean strictlyDominates(BasicBlock a, BasicBlock b) {
+    return a != b && dominates(a, b);
+  }
+
+  /**
+   * Returns the dominance frontier of a block.
+   */
+  public Set<BasicBlock> getDominanceFrontier(BasicBlock block) {
+    if (frontiers == null) {
+      computeFrontiers();
+    }
+    int b = indexOf(block);
+    return b < 0 ? Set.of() : frontiers.get(b);
+  }
+
+  private void computeFrontiers() {
+    frontiers = new ArrayList<>(blocks.length);
+    for (int b = 0; b < blocks.length; b++) {
+      frontiers.add(new LinkedHashSet<>());
+    }
+    for (int b = 0; b < blocks.length; b++) {
+      List<BasicBlock> preds = predecessors.getOrDefault(blocks[b], List.of());
+      if (preds.size() < 2) {
+        continue;
+      }
+      for (BasicBlock p : preds) {
+        int runner = indexOf(p);
+        if (runner < 0) {
+          continue;
+        }
+        while (runner != idom[b]) {
+          frontiers.get(runner).add(blocks[b]);
+          runner = idom[runner];
+        }
+      }
+    }
+  }
+}
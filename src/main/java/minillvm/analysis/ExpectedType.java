@@ -73,6 +73,20 @@ public class ExpectedType {
           return t;
         }
 
+        @Override
+        public Type case_Select(Select select) {
+          if (operand == select.getCondition()) {
+            return Ast.TypeBool();
+          }
+          // expects the same type as the other value
+          Type t = operand == select.getIfTrue()
+              ? select.getIfFalse().calculateType() : select.getIfTrue().calculateType();
+          if (t instanceof TypeNullpointer) {
+            return Ast.TypePointer(Ast.TypeByte());
+          }
+          return t;
+        }
+
         @Override
         public Type case_Bitcast(Bitcast bitcast) {
           // unknown
@@ -120,6 +134,11 @@ public class ExpectedType {
           return Ast.TypeInt();
         }
 
+        @Override
+        public Type case_AllocZeroed(AllocZeroed alloc) {
+          return Ast.TypeInt();
+        }
+
         @Override
         public Type case_GetElementPtr(GetElementPtr gep) {
           // unknown
@@ -0,0 +1,217 @@
+package minillvm.analysis;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Natural loops of a procedure and how they are nested.
+ * A loop is identified by its header, back edges to the same header form a single loop.
+ */
+public class Loops {
+
+  private final List<Loop> loops = new ArrayList<>();
+  private final Map<BasicBlock, Loop> innermostLoop = new IdentityHashMap<>();
+
+  /**
+   * Finds the loops of a procedure with the given predecessors and dominator tree.
+   */
+  public Loops(Map<BasicBlock, List<BasicBlock>> predecessors, Dominators dominators) {
+    // visiting headers in reverse postorder finds outer loops before inner ones
+    for (BasicBlock header : dominators.getReversePostorder()) {
+      List<BasicBlock> latches = new ArrayList<>();
+      for (BasicBlock pred : predecessors.getOrDefault(header, List.of())) {
+        if (dominators.dominates(header, pred)) {
+          latches.add(pred);
+        }
+      }
+      if (!latches.isEmpty()) {
+        loops.add(new Loop(header, latches, collectBody(header, latches, predecessors,
+            dominators), predecessors));
+      }
+    }
+
+    computeNesting(dominators);
+  }
+
+  private static Set<BasicBlock> collectBody(BasicBlock header, List<BasicBlock> latches,
+                                             Map<BasicBlock, List<BasicBlock>> predecessors,
+                                             Dominators dominators) {
+    Set<BasicBlock> body = new LinkedHashSet<>();
+    body.add(header);
+    Deque<BasicBlock> todo = new ArrayDeque<>(latches);
+    while (!todo.isEmpty()) {
+      BasicBlock block = todo.pop();
+      if (body.add(block)) {
+        for (BasicBlock pred : predecessors.getOrDefault(block, List.of())) {
+          if (dominators.isReachable(pred)) {
+            todo.push(pred);
+          }
+        }
+      }
+    }
+    return body;
+  }
+
+  private void computeNesting(Dominators dominators) {
+    // outer loops come first, so each block ends up with its innermost loop
+    for (Loop loop : loops) {
+      for (BasicBlock block : loop.blocks) {
+        innermostLoop.put(block, loop);
+      }
+    }
+    for (Loop loop : loops) {
+      BasicBlock idom = dominators.getImmediateDominator(loop.header);
+      // the loop containing the header's idom and the header is the enclosing loop
+      Loop parent = idom == null ? null : innermostLoop.get(idom);
+      while (parent != null && !parent.contains(loop.header)) {
+        parent = parent.parent;
+      }
+      if (parent != null) {
+        loop.parent = parent;
+        loop.depth = parent.depth + 1;
+        parent.children.add(loop);
+      }
+    }
+  }
+
+  /**
+   * Returns all loops, outer loops before the loops nested in them.
+   */
+  public List<Loop> getLoops() {
+    return Collections.unmodifiableList(loops);
+  }
+
+  /**
+   * Returns the loops which are not nested in another loop.
+   */
+  public List<Loop> getTopLevelLoops() {
+    List<Loop> result = new ArrayList<>();
+    for (Loop loop : loops) {
+      if (loop.parent == null) {
+        result.add(loop);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the innermost loop containing the block, or null if it is not in a loop.
+   */
+  public Loop getLoopFor(BasicBlock block) {
+    return innermostLoop.get(block);
+  }
+
+  /**
+   * Returns the number of loops containing the block.
+   */
+  public int getLoopDepth(BasicBlock block) {
+    Loop loop = innermostLoop.get(block);
+    return loop == null ? 0 : loop.depth;
+  }
+
+  /**
+   * A natural loop.
+   */
+  public static class Loop {
+    private final BasicBlock header;
+    private final List<BasicBlock> latches;
+    private final Set<BasicBlock> blocks;
+    private final BasicBlock preheader;
+    private final List<Loop> children = new ArrayList<>();
+    private Loop parent;
+    private int depth = 1;
+
+    Loop(BasicBlock header, List<BasicBlock> latches, Set<BasicBlock> blocks,
+         Map<BasicBlock, List<BasicBlock>> predecessors) {
+      this.header = header;
+      this.latches = latches;
+      this.blocks = blocks;
+      this.preheader = findPreheader(predecessors);
+    }
+
+    /**
+     * The preheader is the only block entering the loop, if it has no other successor.
+     */
+    private BasicBlock findPreheader(Map<BasicBlock, List<BasicBlock>> predecessors) {
+      BasicBlock result = null;
+      for (BasicBlock pred : predecessors.getOrDefault(header, List.of())) {
+        if (blocks.contains(pred)) {
+          continue;
+        }
+        if (result != null && result != pred) {
+          return null;
+        }
+        result = pred;
+      }
+      if (result == null || ControlFlow.getSuccessors(result).size() != 1) {
+        return null;
+      }
+      return result;
+    }
+
+    public BasicBlock getHeader() {
+      return header;
+    }
+
+    public List<BasicBlock> getLatches() {
+      return Collections.unmodifiableList(latches);
+    }
+
+    /**
+     * Returns the blocks of the loop including nested loops, starting with the header.
+     */
+    public Set<BasicBlock> getBlocks() {
+      return Collections.unmodifiableSet(blocks);
+    }
+
+    public boolean contains(BasicBlock block) {
+      return blocks.contains(block);
+    }
+
+    /**
+     * Returns the preheader of the loop, or null if the loop does not have one.
+     */
+    public BasicBlock getPreheader() {
+      return preheader;
+    }
+
+    /**
+     * Returns the blocks outside of the loop, which are targets of edges leaving the loop.
+     */
+    public Set<BasicBlock> getExitBlocks() {
+      Set<BasicBlock> result = new LinkedHashSet<>();
+      for (BasicBlock block : blocks) {
+        for (BasicBlock successor : ControlFlow.getSuccessors(block)) {
+          if (!blocks.contains(successor)) {
+            result.add(successor);
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Returns the enclosing loop, or null for a top level loop.
+     */
+    public Loop getParent() {
+      return parent;
+    }
+
+    public List<Loop> getChildren() {
+      return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Returns the nesting depth, top level loops have depth 1.
+     */
+    public int getDepth() {
+      return depth;
+    }
+
+    @Override
+    public String toString() {
+      return "Loop(" + header.getName() + ", depth " + depth + ")";
+    }
+  }
+}
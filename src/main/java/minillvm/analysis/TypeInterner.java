@@ -0,0 +1,93 @@
+package minillvm.analysis;
+
+import minillvm.ast.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns types, so that structurally equal types are represented by a single instance.
+ * Equality is the same as in {@link Typechecker}, i.e. structs are only equal to themselves.
+ */
+public class TypeInterner {
+
+  private final Map<Key, Type> types = new HashMap<>();
+
+  /**
+   * Returns the canonical instance for the given type.
+   * The components of an interned type are canonical as well.
+   */
+  public Type intern(Type type) {
+    Type result = types.get(new Key(type));
+    if (result != null) {
+      return result;
+    }
+
+    result = canonicalComponents(type);
+    types.put(new Key(result), result);
+    return result;
+  }
+
+  /**
+   * Builds a new type from the canonical instances of the components of the given type.
+   */
+  private Type canonicalComponents(Type type) {
+    if (type instanceof TypePointer) {
+      return Ast.TypePointer(intern(((TypePointer) type).getTo()));
+    } else if (type instanceof TypeArray) {
+      TypeArray ta = (TypeArray) type;
+      return Ast.TypeArray(intern(ta.getOf()), ta.getSize());
+    } else if (type instanceof TypeProc) {
+      TypeProc tp = (TypeProc) type;
+      TypeRefList argTypes = Ast.TypeRefList();
+      for (Type argType : tp.getArgTypes()) {
+        argTypes.add(intern(argType));
+      }
+      return Ast.TypeProc(argTypes, intern(tp.getResultType()));
+    }
+    // basic types have no components and structs are compared by identity
+    return type;
+  }
+
+  private static int hash(Type type) {
+    if (type instanceof TypePointer) {
+      return 31 + hash(((TypePointer) type).getTo());
+    } else if (type instanceof TypeArray) {
+      TypeArray ta = (TypeArray) type;
+      return 31 * hash(ta.getOf()) + ta.getSize();
+    } else if (type instanceof TypeProc) {
+      TypeProc tp = (TypeProc) type;
+      int h = hash(tp.getResultType());
+      for (Type argType : tp.getArgTypes()) {
+        h = 31 * h + hash(argType);
+      }
+      return h;
+    } else if (type instanceof TypeStruct) {
+      return System.identityHashCode(type);
+    }
+    return type.getClass().hashCode();
+  }
+
+  /**
+   * Wrapper to use structural equality of types in hash maps.
+   */
+  private static class Key {
+    private final Type type;
+    private final int hash;
+
+    Key(Type type) {
+      this.type = type;
+      this.hash = hash(type);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && type.equalsType(((Key) o).type);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
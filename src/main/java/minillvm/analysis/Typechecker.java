@@ -113,6 +113,11 @@ public class Typechecker {
           return Ast.TypePointer(Ast.TypeByte());
         }
 
+        @Override
+        public Type case_AllocZeroed(AllocZeroed alloc) {
+          return Ast.TypePointer(Ast.TypeByte());
+        }
+
         @Override
         public Type case_Call(Call call) {
           Type funcType = calculateType(call.getFunction(), visited);
@@ -149,6 +154,15 @@ public class Typechecker {
           return Ast.TypePointer(alloca.getType());
         }
 
+        @Override
+        public Type case_Select(Select select) {
+          Type t = calculateType(select.getIfTrue(), visited);
+          if (t instanceof TypeNullpointer) {
+            return calculateType(select.getIfFalse(), visited);
+          }
+          return t;
+        }
+
         @Override
         public Type case_GetElementPtr(GetElementPtr gep) {
           Type ba = calculateType(gep.getBaseAddress(), visited);
@@ -197,7 +211,8 @@ public class Typechecker {
 
   public static boolean isComparison(Operator operator) {
     return operator instanceof Eq
-        || operator instanceof Slt;
+        || operator instanceof Slt
+        || operator instanceof Ult;
   }
 
   public static boolean equalsType(TypeByte t, Type other) {
@@ -0,0 +1,59 @@
+package minillvm.optimization;
+
+import minillvm.ast.Proc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Computes analyses of procedures lazily and caches them until they are invalidated.
+ */
+public class AnalysisManager {
+
+  private final Map<Proc, Map<ProcAnalysis<?>, Object>> cache = new HashMap<>();
+
+  /**
+   * Returns the result of an analysis, computing it if it is not cached.
+   */
+  public <T> T get(ProcAnalysis<T> analysis, Proc proc) {
+    Map<ProcAnalysis<?>, Object> results = cache.computeIfAbsent(proc, p -> new HashMap<>());
+    @SuppressWarnings("unchecked")
+    T result = (T) results.get(analysis);
+    if (result == null) {
+      result = analysis.compute(proc, this);
+      results.put(analysis, result);
+    }
+    return result;
+  }
+
+  /**
+   * Drops all cached results of a procedure.
+   */
+  public void invalidate(Proc proc) {
+    cache.remove(proc);
+  }
+
+  /**
+   * Drops the cached results of a procedure, which depend on more than its control flow.
+   */
+  public void invalidateExceptControlFlow(Proc proc) {
+    Map<ProcAnalysis<?>, Object> results = cache.get(proc);
+    if (results == null) {
+      return;
+    }
+    Iterator<ProcAnalysis<?>> it = results.keySet().iterator();
+    while (it.hasNext()) {
+      if (!it.next().isControlFlowOnly()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops all cached results.
+   */
+  public void invalidateAll() {
+    cache.clear();
+  }
+}
@@ -0,0 +1,329 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.analysis.Dominators;
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Removes array bounds checks, which are implied by dominating comparisons.
+ *
+ * <p>An index is known to be in range, if it is not negative and a dominating branch on
+ * {@code index < a.length} was taken, or if it is a constant smaller than the size
+ * the array was allocated with. Loads of the length of the same array value are treated
+ * as equal, as the length of an array never changes. Indexes are not negative,
+ * if they are non-negative constants, array lengths, bounded by a dominating comparison,
+ * or induction variables starting at a non-negative value and incremented by one
+ * below a dominating upper bound, so that the increment cannot overflow.
+ */
+public class BoundsCheckElimination implements FunctionPass {
+
+  private Dominators dominators;
+  // facts from branch edges, indexed by the smaller operand
+  private Map<Variable, List<Fact>> factsBySmaller;
+  // facts with a constant as smaller operand, indexed by the larger operand
+  private Map<Variable, List<Fact>> lowerBounds;
+  private Set<PhiNode> nonNegativePhis;
+
+  @Override
+  public String getName() {
+    return "bounds-check-elimination";
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    dominators = analyses.get(ProcAnalysis.DOMINATORS, proc);
+    collectFacts(analyses.get(ProcAnalysis.PREDECESSORS, proc));
+    computeNonNegativePhis();
+
+    boolean changed = false;
+    for (BasicBlock block : dominators.getReversePostorder()) {
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (t.isEmpty() || !(t.get() instanceof Branch)) {
+        continue;
+      }
+      Branch branch = (Branch) t.get();
+      BoundsCheck check = BoundsCheck.match(branch);
+      if (check == null
+          || !isNonNegative(check.index, block)
+          || !isBelowLength(check.index, check.array, block)) {
+        continue;
+      }
+      Uses.removeInstruction(branch);
+      block.add(Ast.Jump(branch.getIfTrueLabel()));
+      changed = true;
+    }
+
+    if (changed) {
+      DeadCodeElimination.removeDeadInstructions(proc);
+      ControlFlow.removeUnreachableBlocks(proc);
+    }
+    return changed;
+  }
+
+  /**
+   * Records the comparisons known to hold in the blocks only reachable through a branch edge.
+   */
+  private void collectFacts(Map<BasicBlock, List<BasicBlock>> predecessors) {
+    factsBySmaller = new HashMap<>();
+    lowerBounds = new HashMap<>();
+    for (BasicBlock block : dominators.getReversePostorder()) {
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (t.isEmpty() || !(t.get() instanceof Branch)) {
+        continue;
+      }
+      Branch branch = (Branch) t.get();
+      BasicBlock ifTrue = branch.getIfTrueLabel();
+      BasicBlock ifFalse = branch.getIfFalseLabel();
+      if (ifTrue == ifFalse) {
+        continue;
+      }
+      if (predecessors.get(ifTrue).size() == 1) {
+        for (BinaryOperation cmp : conjuncts(branch.getCondition())) {
+          addFact(new Fact(cmp.getLeft(), cmp.getRight(), true, ifTrue));
+        }
+      }
+      Assign def = Uses.definition(branch.getCondition());
+      if (predecessors.get(ifFalse).size() == 1 && isLessThan(def)) {
+        // !(left < right) is right <= left
+        BinaryOperation cmp = (BinaryOperation) def;
+        addFact(new Fact(cmp.getRight(), cmp.getLeft(), false, ifFalse));
+      }
+    }
+  }
+
+  private static boolean isLessThan(Assign def) {
+    return def instanceof BinaryOperation
+        && ((BinaryOperation) def).getOperator() instanceof Slt;
+  }
+
+  /**
+   * Returns the comparisons, which hold if the condition is true. A short-circuit and
+   * of side-effect-free operands is translated to {@code select a, b, false}.
+   */
+  private static List<BinaryOperation> conjuncts(Operand condition) {
+    List<BinaryOperation> result = new ArrayList<>();
+    Assign def = Uses.definition(condition);
+    if (isLessThan(def)) {
+      result.add((BinaryOperation) def);
+    } else if (def instanceof Select && Uses.sameValue(((Select) def).getIfFalse(),
+        Ast.ConstBool(false))) {
+      result.addAll(conjuncts(((Select) def).getCondition()));
+      result.addAll(conjuncts(((Select) def).getIfTrue()));
+    }
+    return result;
+  }
+
+  private void addFact(Fact fact) {
+    if (fact.smaller instanceof VarRef) {
+      factsBySmaller.computeIfAbsent(((VarRef) fact.smaller).getVariable(),
+          v -> new ArrayList<>()).add(fact);
+    } else if (fact.smaller instanceof ConstInt && fact.larger instanceof VarRef) {
+      lowerBounds.computeIfAbsent(((VarRef) fact.larger).getVariable(),
+          v -> new ArrayList<>()).add(fact);
+    }
+  }
+
+  /**
+   * Starts with all integer phi nodes and removes those with an input,
+   * which might be negative, until nothing changes.
+   */
+  private void computeNonNegativePhis() {
+    nonNegativePhis = new HashSet<>();
+    for (BasicBlock block : dominators.getReversePostorder()) {
+      for (PhiNode phi : block.getPhiNodes()) {
+        if (phi.getType() instanceof TypeInt) {
+          nonNegativePhis.add(phi);
+        }
+      }
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = nonNegativePhis.removeIf(phi -> {
+        for (PhiNodeChoice choice : phi.getChoices()) {
+          if (!isNonNegative(choice.getValue(), choice.getLabel())) {
+            return true;
+          }
+        }
+        return false;
+      });
+    }
+  }
+
+  private boolean isNonNegative(Operand op, BasicBlock block) {
+    if (op instanceof ConstInt) {
+      return ((ConstInt) op).getIntVal() >= 0;
+    } else if (!(op instanceof VarRef)) {
+      return false;
+    }
+
+    for (Fact fact : lowerBounds.getOrDefault(((VarRef) op).getVariable(), List.of())) {
+      int bound = ((ConstInt) fact.smaller).getIntVal();
+      if ((bound >= 0 || fact.strict && bound >= -1)
+          && dominators.dominates(fact.region, block)) {
+        return true;
+      }
+    }
+
+    Assign def = Uses.definition(op);
+    if (def instanceof PhiNode) {
+      return nonNegativePhis.contains(def);
+    } else if (def instanceof Load) {
+      return lengthArray(op) != null;
+    } else if (def instanceof BinaryOperation
+        && ((BinaryOperation) def).getOperator() instanceof Add) {
+      BinaryOperation add = (BinaryOperation) def;
+      BasicBlock defBlock = (BasicBlock) add.getParent();
+      Operand base = add.getLeft();
+      Operand step = add.getRight();
+      if (base instanceof ConstInt) {
+        base = add.getRight();
+        step = add.getLeft();
+      }
+      if (!(step instanceof ConstInt) || !isNonNegative(base, defBlock)) {
+        return false;
+      }
+      int c = ((ConstInt) step).getIntVal();
+      // base < x <= MAX_INT, so base + 1 does not overflow
+      return c == 0 || c == 1 && hasUpperBound(base, defBlock);
+    }
+    return false;
+  }
+
+  private boolean hasUpperBound(Operand op, BasicBlock block) {
+    if (!(op instanceof VarRef)) {
+      return false;
+    }
+    for (Fact fact : factsBySmaller.getOrDefault(((VarRef) op).getVariable(), List.of())) {
+      if (fact.strict && dominators.dominates(fact.region, block)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isBelowLength(Operand index, Operand array, BasicBlock block) {
+    if (index instanceof ConstInt) {
+      Integer size = allocatedSize(array);
+      return size != null && ((ConstInt) index).getIntVal() < size;
+    } else if (!(index instanceof VarRef)) {
+      return false;
+    }
+    for (Fact fact : factsBySmaller.getOrDefault(((VarRef) index).getVariable(), List.of())) {
+      if (fact.strict && dominators.dominates(fact.region, block)) {
+        Operand lengthOf = lengthArray(fact.larger);
+        if (lengthOf != null && Uses.sameValue(lengthOf, array)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the array, if the operand is a load of the length of that array.
+   */
+  static Operand lengthArray(Operand op) {
+    Assign def = Uses.definition(op);
+    if (!(def instanceof Load)) {
+      return null;
+    }
+    Assign addr = Uses.definition(((Load) def).getAddress());
+    if (!(addr instanceof GetElementPtr)) {
+      return null;
+    }
+    GetElementPtr gep = (GetElementPtr) addr;
+    Type base = gep.getBaseAddress().calculateType();
+    if (gep.getIndices().size() != 2
+        || !Uses.sameValue(gep.getIndices().get(0), Ast.ConstInt(0))
+        || !Uses.sameValue(gep.getIndices().get(1), Ast.ConstInt(0))
+        || !(base instanceof TypePointer)
+        || !isArrayStruct(((TypePointer) base).getTo())) {
+      return null;
+    }
+    return gep.getBaseAddress();
+  }
+
+  private static boolean isArrayStruct(Type t) {
+    if (!(t instanceof TypeStruct)) {
+      return false;
+    }
+    StructFieldList fields = ((TypeStruct) t).getFields();
+    return fields.size() == 2 && fields.get(0).getName().equals("length")
+        && fields.get(1).getType() instanceof TypeArray;
+  }
+
+  /**
+   * Returns the constant size an array was allocated with, if known.
+   */
+  private static Integer allocatedSize(Operand array) {
+    Assign def = Uses.definition(array);
+    if (def instanceof Call) {
+      Call call = (Call) def;
+      if (call.getFunction() instanceof ProcedureRef
+          && ((ProcedureRef) call.getFunction()).getProcedure().getName().equals("newArray")
+          && call.getArguments().size() == 1
+          && call.getArguments().get(0) instanceof ConstInt) {
+        return ((ConstInt) call.getArguments().get(0)).getIntVal();
+      }
+    } else if (def instanceof Bitcast) {
+      // an array on the stack, see EscapeAnalysis
+      Assign stack = Uses.definition(((Bitcast) def).getExpr());
+      if (stack instanceof Alloca && ((Alloca) stack).getType() instanceof TypeStruct) {
+        StructFieldList fields = ((TypeStruct) ((Alloca) stack).getType()).getFields();
+        if (fields.size() == 2 && fields.get(1).getType() instanceof TypeArray) {
+          return ((TypeArray) fields.get(1).getType()).getSize();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A comparison {@code smaller < larger} (strict) or {@code smaller <= larger},
+   * which holds in all blocks dominated by the region block.
+   */
+  private static class Fact {
+    final Operand smaller;
+    final Operand larger;
+    final boolean strict;
+    final BasicBlock region;
+
+    Fact(Operand smaller, Operand larger, boolean strict, BasicBlock region) {
+      this.smaller = smaller;
+      this.larger = larger;
+      this.strict = strict;
+      this.region = region;
+    }
+  }
+
+  /**
+   * A bounds check on an array index as emitted by the translator:
+   * {@code branch (index ult length), inRange, outOfBounds}.
+   */
+  static class BoundsCheck {
+    final Operand index;
+    final Operand array;
+
+    private BoundsCheck(Operand index, Operand array) {
+      this.index = index;
+      this.array = array;
+    }
+
+    static BoundsCheck match(Branch branch) {
+      Assign def = Uses.definition(branch.getCondition());
+      if (!(def instanceof BinaryOperation)
+          || !(((BinaryOperation) def).getOperator() instanceof Ult)
+          || branch.getIfTrueLabel() == branch.getIfFalseLabel()) {
+        return null;
+      }
+      BinaryOperation inBounds = (BinaryOperation) def;
+      Operand array = lengthArray(inBounds.getRight());
+      if (array == null) {
+        return null;
+      }
+      return new BoundsCheck(inBounds.getLeft(), array);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck, "Constant Propagation with
+ * Conditional Branches"). Folds constant integer and boolean computations, turns branches
+ * on constant conditions into jumps and removes the blocks, which become unreachable.
+ *
+ * <p>Values of a variable form a lattice: not yet known (absent from the map), a constant
+ * ({@link Integer}, {@link Boolean} or {@link #NULL}), or {@link #VARYING}.
+ * Null constants are only used to fold comparisons, pointer operands are never replaced.
+ */
+public class ConstantPropagation implements FunctionPass {
+
+  private static final Object VARYING = new Object();
+  private static final Object NULL = new Object();
+
+  private Map<Variable, Object> values;
+  private Map<Variable, List<VarRef>> uses;
+  private Set<BasicBlock> executableBlocks;
+  private Map<BasicBlock, Set<BasicBlock>> executableEdges;
+  private Deque<BasicBlock[]> edgeWorklist;
+  private Deque<Instruction> instructionWorklist;
+
+  @Override
+  public String getName() {
+    return "constant-propagation";
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    analyze(proc);
+    boolean changed = replaceConstants();
+    changed |= foldBranches(proc);
+    if (changed) {
+      ControlFlow.removeUnreachableBlocks(proc);
+      DeadCodeElimination.removeDeadInstructions(proc);
+    }
+    return changed;
+  }
+
+  private void analyze(Proc proc) {
+    values = new HashMap<>();
+    uses = Uses.collectUses(proc);
+    executableBlocks = new HashSet<>();
+    executableEdges = new HashMap<>();
+    edgeWorklist = new ArrayDeque<>();
+    instructionWorklist = new ArrayDeque<>();
+    for (Parameter p : proc.getParameters()) {
+      values.put(p, VARYING);
+    }
+
+    edgeWorklist.add(new BasicBlock[] {null, proc.getBasicBlocks().get(0)});
+    while (!edgeWorklist.isEmpty() || !instructionWorklist.isEmpty()) {
+      while (!edgeWorklist.isEmpty()) {
+        BasicBlock[] edge = edgeWorklist.poll();
+        BasicBlock from = edge[0];
+        BasicBlock to = edge[1];
+        if (from != null
+            && !executableEdges.computeIfAbsent(from, b -> new HashSet<>()).add(to)) {
+          continue;
+        }
+        if (executableBlocks.add(to)) {
+          for (Instruction instr : to) {
+            visit(instr);
+          }
+        } else {
+          // only the phi nodes see the new edge
+          for (PhiNode phi : to.getPhiNodes()) {
+            visit(phi);
+          }
+        }
+      }
+      while (!instructionWorklist.isEmpty()) {
+        Instruction instr = instructionWorklist.poll();
+        if (executableBlocks.contains((BasicBlock) instr.getParent())) {
+          visit(instr);
+        }
+      }
+    }
+  }
+
+  private boolean isExecutable(BasicBlock from, BasicBlock to) {
+    return executableEdges.getOrDefault(from, Set.of()).contains(to);
+  }
+
+  private void visit(Instruction instr) {
+    if (instr instanceof PhiNode) {
+      PhiNode phi = (PhiNode) instr;
+      BasicBlock block = (BasicBlock) phi.getParent();
+      Object value = null;
+      for (PhiNodeChoice choice : phi.getChoices()) {
+        if (isExecutable(choice.getLabel(), block)) {
+          value = meet(value, valueOf(choice.getValue()));
+        }
+      }
+      update(phi.getVar(), value);
+    } else if (instr instanceof BinaryOperation) {
+      BinaryOperation binOp = (BinaryOperation) instr;
+      update(binOp.getVar(), evaluate(binOp.getOperator(),
+          valueOf(binOp.getLeft()), valueOf(binOp.getRight())));
+    } else if (instr instanceof Select) {
+      Select select = (Select) instr;
+      Object condition = valueOf(select.getCondition());
+      Object value = null;
+      if (condition == VARYING || Boolean.TRUE.equals(condition)) {
+        value = meet(value, valueOf(select.getIfTrue()));
+      }
+      if (condition == VARYING || Boolean.FALSE.equals(condition)) {
+        value = meet(value, valueOf(select.getIfFalse()));
+      }
+      update(select.getVar(), value);
+    } else if (instr instanceof Bitcast) {
+      Object value = valueOf(((Bitcast) instr).getExpr());
+      update(((Bitcast) instr).getVar(), value == null || value == NULL ? value : VARYING);
+    } else if (instr instanceof Assign) {
+      update(((Assign) instr).getVar(), VARYING);
+    } else if (instr instanceof Jump) {
+      addEdge(instr, ((Jump) instr).getLabel());
+    } else if (instr instanceof Branch) {
+      Branch branch = (Branch) instr;
+      Object condition = valueOf(branch.getCondition());
+      if (condition == VARYING || Boolean.TRUE.equals(condition)) {
+        addEdge(branch, branch.getIfTrueLabel());
+      }
+      if (condition == VARYING || Boolean.FALSE.equals(condition)) {
+        addEdge(branch, branch.getIfFalseLabel());
+      }
+    }
+  }
+
+  private void addEdge(Instruction terminator, BasicBlock to) {
+    edgeWorklist.add(new BasicBlock[] {(BasicBlock) terminator.getParent(), to});
+  }
+
+  private void update(Variable v, Object value) {
+    if (value == null) {
+      return;
+    }
+    Object old = values.get(v);
+    if (old == VARYING || value.equals(old)) {
+      return;
+    }
+    // values only move down in the lattice
+    values.put(v, old == null ? value : VARYING);
+    for (VarRef use : uses.getOrDefault(v, List.of())) {
+      Element user = use.getParent();
+      while (!(user instanceof Instruction)) {
+        user = user.getParent();
+      }
+      instructionWorklist.add((Instruction) user);
+    }
+  }
+
+  private Object valueOf(Operand op) {
+    if (op instanceof ConstInt) {
+      return ((ConstInt) op).getIntVal();
+    } else if (op instanceof ConstBool) {
+      return ((ConstBool) op).getBoolVal();
+    } else if (op instanceof Nullpointer) {
+      return NULL;
+    } else if (op instanceof VarRef) {
+      return values.get(((VarRef) op).getVariable());
+    }
+    // addresses of globals and procedures
+    return VARYING;
+  }
+
+  private static Object meet(Object a, Object b) {
+    if (a == null) {
+      return b;
+    } else if (b == null || a.equals(b)) {
+      return a;
+    }
+    return VARYING;
+  }
+
+  private static Object evaluate(Operator op, Object left, Object right) {
+    // results which do not depend on the other operand
+    if (op instanceof And && (isZero(left) || isZero(right))) {
+      return left instanceof Boolean || right instanceof Boolean ? (Object) false : (Object) 0;
+    } else if (op instanceof Or && (Boolean.TRUE.equals(left) || Boolean.TRUE.equals(right))) {
+      return true;
+    } else if (op instanceof Mul && (isZero(left) || isZero(right))) {
+      return 0;
+    }
+
+    if (left == VARYING || right == VARYING) {
+      return VARYING;
+    } else if (left == null || right == null) {
+      return null;
+    }
+
+    if (op instanceof Eq) {
+      return left.equals(right);
+    } else if (left instanceof Boolean && right instanceof Boolean) {
+      boolean l = (Boolean) left;
+      boolean r = (Boolean) right;
+      if (op instanceof And) {
+        return l && r;
+      } else if (op instanceof Or) {
+        return l || r;
+      } else if (op instanceof Xor) {
+        return l ^ r;
+      }
+    } else if (left instanceof Integer && right instanceof Integer) {
+      return evaluateInt(op, (Integer) left, (Integer) right);
+    }
+    return VARYING;
+  }
+
+  private static Object evaluateInt(Operator op, int l, int r) {
+    if (op instanceof Add) {
+      return l + r;
+    } else if (op instanceof Sub) {
+      return l - r;
+    } else if (op instanceof Mul) {
+      return l * r;
+    } else if (op instanceof Sdiv || op instanceof Srem) {
+      if (r == 0 || l == Integer.MIN_VALUE && r == -1) {
+        // undefined in llvm, the translator guards these cases
+        return VARYING;
+      }
+      return op instanceof Sdiv ? l / r : l % r;
+    } else if (op instanceof And) {
+      return l & r;
+    } else if (op instanceof Or) {
+      return l | r;
+    } else if (op instanceof Xor) {
+      return l ^ r;
+    } else if (op instanceof Slt) {
+      return l < r;
+    } else if (op instanceof Ult) {
+      return Integer.compareUnsigned(l, r) < 0;
+    }
+    return VARYING;
+  }
+
+  private static boolean isZero(Object value) {
+    return Boolean.FALSE.equals(value) || Integer.valueOf(0).equals(value);
+  }
+
+  /**
+   * Replaces the uses of variables with an integer or boolean constant value.
+   */
+  private boolean replaceConstants() {
+    boolean changed = false;
+    for (Map.Entry<Variable, Object> e : values.entrySet()) {
+      Operand constant;
+      if (e.getValue() instanceof Integer) {
+        constant = Ast.ConstInt((Integer) e.getValue());
+      } else if (e.getValue() instanceof Boolean) {
+        constant = Ast.ConstBool((Boolean) e.getValue());
+      } else {
+        continue;
+      }
+      List<VarRef> varUses = uses.getOrDefault(e.getKey(), List.of());
+      if (!varUses.isEmpty()) {
+        Uses.replaceAll(varUses, constant);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Replaces branches, of which only one edge is executable, with jumps.
+   */
+  private boolean foldBranches(Proc proc) {
+    boolean changed = false;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (!executableBlocks.contains(block) || t.isEmpty() || !(t.get() instanceof Branch)) {
+        continue;
+      }
+      Branch branch = (Branch) t.get();
+      boolean toTrue = isExecutable(block, branch.getIfTrueLabel());
+      boolean toFalse = isExecutable(block, branch.getIfFalseLabel());
+      if (toTrue == toFalse || branch.getIfTrueLabel() == branch.getIfFalseLabel()) {
+        continue;
+      }
+      BasicBlock target = toTrue ? branch.getIfTrueLabel() : branch.getIfFalseLabel();
+      BasicBlock other = toTrue ? branch.getIfFalseLabel() : branch.getIfTrueLabel();
+      ControlFlow.removePhiChoices(other, block);
+      Uses.removeInstruction(branch);
+      block.add(Ast.Jump(target));
+      changed = true;
+    }
+    return changed;
+  }
+}
@@ -0,0 +1,78 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Removes instructions without side effects, whose result is never used.
+ */
+public class DeadCodeElimination implements FunctionPass {
+
+  @Override
+  public String getName() {
+    return "dead-code-elimination";
+  }
+
+  @Override
+  public boolean preservesControlFlow() {
+    return true;
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    return removeDeadInstructions(proc);
+  }
+
+  /**
+   * Removes dead instructions of a procedure and returns whether something was removed.
+   */
+  public static boolean removeDeadInstructions(Proc proc) {
+    Map<Variable, List<VarRef>> uses = Uses.collectUses(proc);
+    Map<Variable, Integer> useCount = new HashMap<>();
+    for (Map.Entry<Variable, List<VarRef>> e : uses.entrySet()) {
+      useCount.put(e.getKey(), e.getValue().size());
+    }
+
+    Deque<Assign> worklist = new ArrayDeque<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Assign && isRemovable((Assign) instr)
+            && useCount.getOrDefault(((Assign) instr).getVar(), 0) == 0) {
+          worklist.add((Assign) instr);
+        }
+      }
+    }
+
+    boolean changed = false;
+    while (!worklist.isEmpty()) {
+      Assign dead = worklist.pop();
+      if (dead.getParent() == null) {
+        // already removed
+        continue;
+      }
+      Uses.removeInstruction(dead);
+      changed = true;
+      dead.accept(new Element.DefaultVisitor() {
+        @Override
+        public void visit(VarRef ref) {
+          Variable v = ref.getVariable();
+          int count = useCount.getOrDefault(v, 1) - 1;
+          useCount.put(v, count);
+          if (count == 0 && v.getParent() instanceof Assign
+              && isRemovable((Assign) v.getParent())) {
+            worklist.push((Assign) v.getParent());
+          }
+        }
+      });
+    }
+    return changed;
+  }
+
+  /**
+   * Calls and heap allocations are kept, all other instructions only compute their result.
+   */
+  private static boolean isRemovable(Assign instr) {
+    return !(instr instanceof Call || instr instanceof Alloc || instr instanceof AllocZeroed);
+  }
+}
@@ -0,0 +1,138 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * Replaces calls through a virtual table by direct calls,
+ * if the object was created by a constructor call, so its exact class is known.
+ *
+ * <p>A virtual call loads the virtual table from the object and the procedure from the
+ * table. The constructor of the object stores the constant virtual table global of its class,
+ * so the called procedure can be read from the initial value of the global.
+ * Calls which can not reach an overriding method are already translated as direct calls.
+ */
+public class Devirtualization implements ModulePass {
+
+  private final Map<Proc, Optional<Global>> constructedTables = new HashMap<>();
+
+  @Override
+  public String getName() {
+    return "devirtualization";
+  }
+
+  @Override
+  public boolean run(Prog prog, AnalysisManager analyses) {
+    constructedTables.clear();
+    boolean changed = false;
+    for (Proc proc : prog.getProcedures()) {
+      if (devirtualize(proc)) {
+        DeadCodeElimination.removeDeadInstructions(proc);
+        analyses.invalidate(proc);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private boolean devirtualize(Proc proc) {
+    boolean changed = false;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (int i = 0; i < block.size(); i++) {
+        if (!(block.get(i) instanceof Call)) {
+          continue;
+        }
+        Call call = (Call) block.get(i);
+        Proc target = exactTarget(call.getFunction());
+        if (target == null || call.getArguments().isEmpty()) {
+          continue;
+        }
+        // an inherited method expects a pointer to its declaring class
+        Operand receiver = call.getArguments().get(0);
+        Type receiverType = target.getParameters().get(0).getType();
+        if (!receiver.calculateType().equalsType(receiverType)) {
+          TemporaryVar cast = TemporaryVar("receiver");
+          block.add(i, Bitcast(cast, receiverType, receiver.copy()));
+          call.getArguments().set(0, VarRef(cast));
+          i++;
+        }
+        call.setFunction(ProcedureRef(target));
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Returns the procedure called through a function pointer,
+   * if it is loaded from the virtual table of an object with a known class.
+   */
+  private Proc exactTarget(Operand function) {
+    Assign procLoad = Uses.definition(function);
+    if (!(procLoad instanceof Load)) {
+      return null;
+    }
+    Assign slotAddr = Uses.definition(((Load) procLoad).getAddress());
+    if (!(slotAddr instanceof GetElementPtr)
+        || ((GetElementPtr) slotAddr).getIndices().size() != 2
+        || !(((GetElementPtr) slotAddr).getIndices().get(1) instanceof ConstInt)) {
+      return null;
+    }
+    int slot = ((ConstInt) ((GetElementPtr) slotAddr).getIndices().get(1)).getIntVal();
+    Assign tableLoad = Uses.definition(((GetElementPtr) slotAddr).getBaseAddress());
+    if (!(tableLoad instanceof Load)) {
+      return null;
+    }
+    Assign tableAddr = Uses.definition(((Load) tableLoad).getAddress());
+    if (!(tableAddr instanceof GetElementPtr)) {
+      return null;
+    }
+
+    Operand object = ((GetElementPtr) tableAddr).getBaseAddress();
+    Assign def = Uses.definition(object);
+    while (def instanceof Bitcast) {
+      def = Uses.definition(((Bitcast) def).getExpr());
+    }
+    if (!(def instanceof Call) || !(((Call) def).getFunction() instanceof ProcedureRef)) {
+      return null;
+    }
+    Proc constructor = ((ProcedureRef) ((Call) def).getFunction()).getProcedure();
+    Global table = constructedTables.computeIfAbsent(constructor, this::findConstructedTable)
+        .orElse(null);
+    if (table == null || !(table.getInitialValue() instanceof ConstStruct)) {
+      return null;
+    }
+    ConstList values = ((ConstStruct) table.getInitialValue()).getValues();
+    if (slot < 0 || slot >= values.size() || !(values.get(slot) instanceof ProcedureRef)) {
+      return null;
+    }
+    return ((ProcedureRef) values.get(slot)).getProcedure();
+  }
+
+  /**
+   * Returns the virtual table, which the procedure stores into the object it returns,
+   * if the procedure is an object constructor.
+   */
+  private Optional<Global> findConstructedTable(Proc proc) {
+    if (!proc.getName().equals("newObjectConstructor")) {
+      return Optional.empty();
+    }
+    Global result = null;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (!(instr instanceof Store) || !(((Store) instr).getValue() instanceof GlobalRef)) {
+          continue;
+        }
+        Global global = ((GlobalRef) ((Store) instr).getValue()).getGlobal();
+        if (!global.getIsConstant() || result != null && result != global) {
+          return Optional.empty();
+        }
+        result = global;
+      }
+    }
+    return Optional.ofNullable(result);
+  }
+}
@@ -0,0 +1,284 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * Moves allocations, whose pointer does not escape the procedure, from the heap to the stack.
+ *
+ * <p>A pointer escapes, if it is stored, returned, passed to a call or merged by a phi node.
+ * Otherwise it is only cast, compared or used to compute addresses for loads and stores.
+ * Without phi nodes the object of an earlier loop iteration can not be used, so the memory
+ * can be reused and the replacements are allocated once in the entry block.
+ *
+ * <p>Objects, whose fields are only accessed directly, are replaced by one alloca per field,
+ * which a following {@link Mem2Reg} promotes to registers. Small arrays of a constant size
+ * become an alloca of a sized struct, if their elements are no pointers: the garbage
+ * collector does not scan the stack. All replacements are initialized where the allocation
+ * happened, as the heap allocations return zeroed memory.
+ */
+public class EscapeAnalysis implements FunctionPass {
+
+  private static final int MAX_STACK_ARRAY_SIZE = 16;
+
+  private final Map<String, TypeStruct> sizedArrays = new HashMap<>();
+  private Map<Variable, List<VarRef>> uses;
+
+  @Override
+  public String getName() {
+    return "escape-analysis";
+  }
+
+  @Override
+  public boolean preservesControlFlow() {
+    return true;
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    uses = Uses.collectUses(proc);
+    List<AllocZeroed> objects = new ArrayList<>();
+    List<Call> arrays = new ArrayList<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof AllocZeroed
+            && ((AllocZeroed) instr).getSizeInBytes() instanceof Sizeof) {
+          objects.add((AllocZeroed) instr);
+        } else if (instr instanceof Call && stackArraySize((Call) instr) >= 0) {
+          arrays.add((Call) instr);
+        }
+      }
+    }
+
+    boolean changed = false;
+    for (AllocZeroed alloc : objects) {
+      changed |= replaceByFields(proc, alloc);
+    }
+    for (Call call : arrays) {
+      changed |= allocateOnStack(proc, call);
+    }
+    return changed;
+  }
+
+  /**
+   * Returns the size of an array allocated by the call, if it may live on the stack, or -1.
+   */
+  private static int stackArraySize(Call call) {
+    if (!(call.getFunction() instanceof ProcedureRef)
+        || !((ProcedureRef) call.getFunction()).getProcedure().getName().equals("newArray")
+        || call.getArguments().size() != 1
+        || !(call.getArguments().get(0) instanceof ConstInt)) {
+      return -1;
+    }
+    int size = ((ConstInt) call.getArguments().get(0)).getIntVal();
+    Type elementType = elementType(call.calculateType());
+    if (size < 0 || size > MAX_STACK_ARRAY_SIZE || elementType instanceof TypePointer) {
+      return -1;
+    }
+    return size;
+  }
+
+  private static Type elementType(Type arrayPointer) {
+    TypeStruct struct = (TypeStruct) ((TypePointer) arrayPointer).getTo();
+    return ((TypeArray) struct.getFields().get(1).getType()).getOf();
+  }
+
+  /**
+   * The instructions using a pointer derived from an allocation.
+   */
+  private static class DerivedUses {
+    final List<Bitcast> casts = new ArrayList<>();
+    final List<GetElementPtr> addresses = new ArrayList<>();
+    final List<BinaryOperation> comparisons = new ArrayList<>();
+  }
+
+  /**
+   * Collects the uses of the pointer and the pointers derived from it,
+   * or returns null if the pointer escapes.
+   */
+  private DerivedUses collectDerivedUses(TemporaryVar pointer) {
+    DerivedUses result = new DerivedUses();
+    Deque<TemporaryVar> todo = new ArrayDeque<>();
+    todo.push(pointer);
+    while (!todo.isEmpty()) {
+      TemporaryVar v = todo.pop();
+      for (VarRef ref : uses.getOrDefault(v, List.of())) {
+        Element user = ref.getParent();
+        if (user instanceof OperandList) {
+          user = user.getParent();
+        }
+        if (user instanceof Bitcast) {
+          result.casts.add((Bitcast) user);
+          todo.push(((Bitcast) user).getVar());
+        } else if (user instanceof GetElementPtr
+            && ((GetElementPtr) user).getBaseAddress() == ref
+            && isOnlyAccessed(((GetElementPtr) user).getVar())) {
+          result.addresses.add((GetElementPtr) user);
+        } else if (user instanceof BinaryOperation
+            && ((BinaryOperation) user).getOperator() instanceof Eq) {
+          result.comparisons.add((BinaryOperation) user);
+        } else {
+          return null;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether an address is only loaded from and stored to.
+   */
+  private boolean isOnlyAccessed(TemporaryVar address) {
+    for (VarRef ref : uses.getOrDefault(address, List.of())) {
+      Element user = ref.getParent();
+      boolean isStoreAddress = user instanceof Store && ((Store) user).getAddress() == ref;
+      if (!(user instanceof Load) && !isStoreAddress) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replaces an object by an alloca for each field, if all accesses use constant field indices
+   * on the type of the object and it is only compared with null.
+   */
+  private boolean replaceByFields(Proc proc, AllocZeroed alloc) {
+    TypeStruct struct = ((Sizeof) alloc.getSizeInBytes()).getStructType();
+    DerivedUses derived = collectDerivedUses(alloc.getVar());
+    if (derived == null) {
+      return false;
+    }
+    for (GetElementPtr gep : derived.addresses) {
+      if (fieldIndex(gep, struct) < 0) {
+        return false;
+      }
+    }
+    for (BinaryOperation comparison : derived.comparisons) {
+      if (!(comparison.getLeft() instanceof Nullpointer)
+          && !(comparison.getRight() instanceof Nullpointer)) {
+        return false;
+      }
+    }
+
+    BasicBlock entry = proc.getBasicBlocks().get(0);
+    BasicBlock block = (BasicBlock) alloc.getParent();
+    int position = indexOf(block, alloc);
+    List<TemporaryVar> fields = new ArrayList<>();
+    for (StructField field : struct.getFields()) {
+      TemporaryVar v = TemporaryVar(field.getName());
+      entry.addFront(Alloca(v, field.getType()));
+      fields.add(v);
+      block.add(++position, Store(VarRef(v), defaultValue(field.getType())));
+    }
+
+    for (GetElementPtr gep : derived.addresses) {
+      TemporaryVar field = fields.get(fieldIndex(gep, struct));
+      Uses.replaceAll(uses.getOrDefault(gep.getVar(), List.of()), VarRef(field));
+      Uses.removeInstruction(gep);
+    }
+    for (BinaryOperation comparison : derived.comparisons) {
+      // the object is never null
+      Uses.replaceAll(uses.getOrDefault(comparison.getVar(), List.of()), ConstBool(false));
+      Uses.removeInstruction(comparison);
+    }
+    for (Bitcast cast : derived.casts) {
+      Uses.removeInstruction(cast);
+    }
+    Uses.removeInstruction(alloc);
+    return true;
+  }
+
+  /**
+   * Returns the index of the field addressed directly in the struct, or -1.
+   */
+  private static int fieldIndex(GetElementPtr gep, TypeStruct struct) {
+    Type base = gep.getBaseAddress().calculateType();
+    OperandList indices = gep.getIndices();
+    if (!(base instanceof TypePointer) || ((TypePointer) base).getTo() != struct
+        || indices.size() != 2
+        || !Uses.sameValue(indices.get(0), ConstInt(0))
+        || !(indices.get(1) instanceof ConstInt)) {
+      return -1;
+    }
+    int index = ((ConstInt) indices.get(1)).getIntVal();
+    return index >= 0 && index < struct.getFields().size() ? index : -1;
+  }
+
+  /**
+   * Replaces a call of newArray by an alloca of a struct with the given number of elements.
+   */
+  private boolean allocateOnStack(Proc proc, Call call) {
+    if (collectDerivedUses(call.getVar()) == null) {
+      return false;
+    }
+    int size = stackArraySize(call);
+    Type arrayPointer = call.calculateType();
+    Type elementType = elementType(arrayPointer);
+    TypeStruct struct = sizedArray(proc, (TypeStruct) ((TypePointer) arrayPointer).getTo(), size);
+
+    TemporaryVar stack = TemporaryVar("stackArray");
+    proc.getBasicBlocks().get(0).addFront(Alloca(stack, struct));
+    BasicBlock block = (BasicBlock) call.getParent();
+    int position = indexOf(block, call);
+    // the sized struct does not count as array, so its length is not invariant memory
+    TemporaryVar lengthAddr = TemporaryVar("lengthAddr");
+    block.add(++position, GetElementPtr(lengthAddr, VarRef(stack),
+        OperandList(ConstInt(0), ConstInt(0))));
+    block.add(++position, Store(VarRef(lengthAddr), ConstInt(size)));
+    for (int i = 0; i < size; i++) {
+      TemporaryVar elementAddr = TemporaryVar("elementAddr");
+      block.add(++position, GetElementPtr(elementAddr, VarRef(stack),
+          OperandList(ConstInt(0), ConstInt(1), ConstInt(i))));
+      block.add(++position, Store(VarRef(elementAddr), defaultValue(elementType)));
+    }
+    TemporaryVar array = TemporaryVar(call.getVar().getName());
+    block.add(++position, Bitcast(array, arrayPointer, VarRef(stack)));
+    Uses.replaceAll(uses.getOrDefault(call.getVar(), List.of()), VarRef(array));
+    Uses.removeInstruction(call);
+    return true;
+  }
+
+  /**
+   * Returns a struct with the layout of the array struct and room for the given number
+   * of elements.
+   */
+  private TypeStruct sizedArray(Proc proc, TypeStruct arrayStruct, int size) {
+    Element prog = proc;
+    while (!(prog instanceof Prog)) {
+      prog = prog.getParent();
+    }
+    Type elementType = ((TypeArray) arrayStruct.getFields().get(1).getType()).getOf();
+    String name = arrayStruct.getName() + "_" + size;
+    TypeStruct result = sizedArrays.get(name);
+    if (result == null || !((Prog) prog).getStructTypes().contains(result)) {
+      result = TypeStruct(name, StructFieldList(
+          StructField(TypeInt(), "size"),
+          StructField(TypeArray(elementType, size), "elements")));
+      ((Prog) prog).getStructTypes().add(result);
+      sizedArrays.put(name, result);
+    }
+    return result;
+  }
+
+  private static Operand defaultValue(Type type) {
+    if (type instanceof TypeInt) {
+      return ConstInt(0);
+    } else if (type instanceof TypeBool) {
+      return ConstBool(false);
+    }
+    return Nullpointer();
+  }
+
+  private static int indexOf(BasicBlock block, Instruction instr) {
+    for (int i = 0; i < block.size(); i++) {
+      if (block.get(i) == instr) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(instr + " not found");
+  }
+}
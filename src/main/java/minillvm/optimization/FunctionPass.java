@@ -0,0 +1,27 @@
+package minillvm.optimization;
+
+import minillvm.ast.Proc;
+
+/**
+ * An optimization pass working on one procedure at a time.
+ */
+public interface FunctionPass {
+
+  /**
+   * Name of the pass, used for timings and error messages.
+   */
+  String getName();
+
+  /**
+   * Runs the pass on a procedure and returns whether the procedure was changed.
+   */
+  boolean run(Proc proc, AnalysisManager analyses);
+
+  /**
+   * Whether the pass keeps the basic blocks and edges of a procedure unchanged,
+   * so that analyses of the control flow stay valid when the pass changes a procedure.
+   */
+  default boolean preservesControlFlow() {
+    return false;
+  }
+}
@@ -0,0 +1,225 @@
+package minillvm.optimization;
+
+import minillvm.analysis.Dominators;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.VarRef;
+
+/**
+ * Removes computations, which compute the same value as a dominating computation.
+ *
+ * <p>Arithmetic, address computations, casts and loads from {@link InvariantMemory} are
+ * numbered along the dominator tree, so a computation is replaced by an equal computation
+ * in a dominating block. Other loads are only replaced within a block, by an earlier load
+ * from the same address or by the value stored there. A store may change every address with
+ * the same type, a call may change all memory.
+ */
+public class GlobalValueNumbering implements FunctionPass {
+
+  private static final Set<Class<? extends Operator>> COMMUTATIVE =
+      Set.of(Add.class, Mul.class, And.class, Or.class, Xor.class, Eq.class);
+
+  private InvariantMemory invariantMemory;
+  private Map<Variable, List<VarRef>> uses;
+  // available values of pure computations in the dominating blocks
+  private Map<List<Object>, Operand> available;
+  private boolean changed;
+
+  @Override
+  public String getName() {
+    return "gvn";
+  }
+
+  @Override
+  public boolean preservesControlFlow() {
+    return true;
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    Dominators dominators = analyses.get(ProcAnalysis.DOMINATORS, proc);
+    invariantMemory = new InvariantMemory(proc);
+    uses = Uses.collectUses(proc);
+    available = new HashMap<>();
+    changed = false;
+
+    Deque<Frame> todo = new ArrayDeque<>();
+    todo.push(new Frame(proc.getBasicBlocks().get(0)));
+    while (!todo.isEmpty()) {
+      Frame frame = todo.peek();
+      if (frame.added != null) {
+        // leaving the dominated region
+        for (List<Object> key : frame.added) {
+          available.remove(key);
+        }
+        todo.pop();
+        continue;
+      }
+      frame.added = numberBlock(frame.block);
+      for (BasicBlock child : dominators.getChildren(frame.block)) {
+        todo.push(new Frame(child));
+      }
+    }
+
+    if (changed) {
+      DeadCodeElimination.removeDeadInstructions(proc);
+    }
+    return changed;
+  }
+
+  /**
+   * Replaces redundant computations in a block and returns the keys of the values,
+   * which became available in the block.
+   */
+  private List<List<Object>> numberBlock(BasicBlock block) {
+    List<List<Object>> added = new ArrayList<>();
+    // loads and stored values in this block by address, with the type of the address
+    Map<List<Object>, Operand> memory = new HashMap<>();
+    Map<List<Object>, Type> memoryTypes = new HashMap<>();
+
+    for (int i = 0; i < block.size(); i++) {
+      Instruction instr = block.get(i);
+      if (instr instanceof Store) {
+        Store store = (Store) instr;
+        List<Object> address = key(store.getAddress());
+        if (address == null) {
+          memory.clear();
+          memoryTypes.clear();
+          continue;
+        }
+        Type type = store.getAddress().calculateType();
+        memoryTypes.entrySet().removeIf(e -> e.getValue().equalsType(type));
+        memory.keySet().retainAll(memoryTypes.keySet());
+        if (!(store.getValue() instanceof Nullpointer)) {
+          // null would need the type of the loaded value
+          memory.put(address, store.getValue());
+          memoryTypes.put(address, type);
+        }
+      } else if (instr instanceof Call) {
+        memory.clear();
+        memoryTypes.clear();
+      } else if (instr instanceof Load
+          && !invariantMemory.isInvariant(((Load) instr).getAddress())) {
+        Load load = (Load) instr;
+        List<Object> address = key(load.getAddress());
+        if (address == null) {
+          continue;
+        }
+        Operand value = memory.get(address);
+        if (value != null) {
+          replace(load, value);
+        } else {
+          memory.put(address, VarRef(load.getVar()));
+          memoryTypes.put(address, load.getAddress().calculateType());
+        }
+      } else if (instr instanceof Assign) {
+        Assign assign = (Assign) instr;
+        List<Object> key = computationKey(assign);
+        if (key == null) {
+          continue;
+        }
+        Operand value = available.get(key);
+        if (value == null && assign instanceof BinaryOperation) {
+          List<Object> swapped = swappedKey((BinaryOperation) assign);
+          value = swapped == null ? null : available.get(swapped);
+        }
+        if (value != null) {
+          replace(assign, value);
+        } else {
+          available.put(key, VarRef(assign.getVar()));
+          added.add(key);
+        }
+      }
+    }
+    return added;
+  }
+
+  private void replace(Assign redundant, Operand value) {
+    Uses.replaceAll(uses.getOrDefault(redundant.getVar(), List.of()), value);
+    changed = true;
+  }
+
+  /**
+   * Returns a key identifying the value computed by an instruction,
+   * or null if the instruction can not be replaced by an equal instruction.
+   */
+  private List<Object> computationKey(Assign assign) {
+    List<Object> result = new ArrayList<>();
+    result.add(assign.getClass());
+    if (assign instanceof BinaryOperation) {
+      BinaryOperation binOp = (BinaryOperation) assign;
+      result.add(binOp.getOperator().getClass());
+      result.add(key(binOp.getLeft()));
+      result.add(key(binOp.getRight()));
+    } else if (assign instanceof Select) {
+      Select select = (Select) assign;
+      result.add(key(select.getCondition()));
+      result.add(key(select.getIfTrue()));
+      result.add(key(select.getIfFalse()));
+    } else if (assign instanceof GetElementPtr) {
+      GetElementPtr gep = (GetElementPtr) assign;
+      result.add(key(gep.getBaseAddress()));
+      for (Operand index : gep.getIndices()) {
+        result.add(key(index));
+      }
+    } else if (assign instanceof Bitcast) {
+      Bitcast bitcast = (Bitcast) assign;
+      result.add(bitcast.getType().toString());
+      result.add(key(bitcast.getExpr()));
+    } else if (assign instanceof Load) {
+      Operand address = ((Load) assign).getAddress();
+      if (!invariantMemory.isInvariant(address)) {
+        return null;
+      }
+      result.add(key(address));
+    } else {
+      return null;
+    }
+    return result.contains(null) ? null : result;
+  }
+
+  private List<Object> swappedKey(BinaryOperation binOp) {
+    if (!COMMUTATIVE.contains(binOp.getOperator().getClass())) {
+      return null;
+    }
+    List<Object> result = new ArrayList<>();
+    result.add(binOp.getClass());
+    result.add(binOp.getOperator().getClass());
+    result.add(key(binOp.getRight()));
+    result.add(key(binOp.getLeft()));
+    return result.contains(null) ? null : result;
+  }
+
+  /**
+   * Returns a key identifying the value of an operand, or null for operands not handled.
+   */
+  private static List<Object> key(Operand op) {
+    if (op instanceof VarRef) {
+      return List.of(((VarRef) op).getVariable());
+    } else if (op instanceof ConstInt) {
+      return List.of(Integer.class, ((ConstInt) op).getIntVal());
+    } else if (op instanceof ConstBool) {
+      return List.of(Boolean.class, ((ConstBool) op).getBoolVal());
+    } else if (op instanceof GlobalRef) {
+      return List.of(((GlobalRef) op).getGlobal());
+    } else if (op instanceof ProcedureRef) {
+      return List.of(((ProcedureRef) op).getProcedure());
+    }
+    // the type of null and sizeof depend on the context
+    return null;
+  }
+
+  /**
+   * A block on the dominator tree walk, added is set once the block has been numbered.
+   */
+  private static class Frame {
+    final BasicBlock block;
+    List<List<Object>> added;
+
+    Frame(BasicBlock block) {
+      this.block = block;
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * Replaces direct calls of small procedures by a copy of the called procedure.
+ *
+ * <p>Procedures are handled callees first, so a procedure is inlined after its own calls have
+ * been inlined. A call is inlined, if the callee has at most {@code calleeThreshold}
+ * instructions, contains no loop and the caller does not grow beyond {@code callerLimit}
+ * instructions. Calls of recursive procedures are inlined at most {@code recursionLimit}
+ * times into each caller, as every copy contains the recursive calls again.
+ *
+ * <p>The block of the call is split after the call. The copied entry block is jumped to
+ * in place of the call, and the returns of the copy jump to the rest of the block,
+ * where a phi node collects the returned values.
+ */
+public class Inliner implements ModulePass {
+
+  private final int calleeThreshold;
+  private final int callerLimit;
+  private final int recursionLimit;
+
+  private Map<Proc, Integer> sizes;
+
+  /**
+   * Creates an inliner with default thresholds, which does not inline recursive calls.
+   */
+  public Inliner() {
+    this(40, 2000, 0);
+  }
+
+  /**
+   * Creates an inliner with the given maximum callee size, maximum caller size after inlining
+   * and number of times a recursive procedure may be inlined into a caller.
+   */
+  public Inliner(int calleeThreshold, int callerLimit, int recursionLimit) {
+    this.calleeThreshold = calleeThreshold;
+    this.callerLimit = callerLimit;
+    this.recursionLimit = recursionLimit;
+  }
+
+  @Override
+  public String getName() {
+    return "inline";
+  }
+
+  @Override
+  public boolean run(Prog prog, AnalysisManager analyses) {
+    sizes = new HashMap<>();
+    for (Proc proc : prog.getProcedures()) {
+      sizes.put(proc, size(proc));
+    }
+    boolean changed = false;
+    for (Proc proc : callGraphPostorder(prog)) {
+      if (inlineCalls(proc, analyses)) {
+        analyses.invalidate(proc);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static int size(Proc proc) {
+    int size = 0;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (!(instr instanceof CommentInstr)) {
+          size++;
+        }
+      }
+    }
+    return size;
+  }
+
+  private static Proc directCallee(Call call) {
+    if (call.getFunction() instanceof ProcedureRef) {
+      return ((ProcedureRef) call.getFunction()).getProcedure();
+    }
+    return null;
+  }
+
+  /**
+   * Orders the procedures, so that callees come before their callers, except in cycles.
+   */
+  private static List<Proc> callGraphPostorder(Prog prog) {
+    List<Proc> result = new ArrayList<>();
+    Set<Proc> visited = new HashSet<>();
+    for (Proc root : prog.getProcedures()) {
+      if (!visited.add(root)) {
+        continue;
+      }
+      // iterative depth first search, the iterator of each procedure yields its callees
+      Deque<Proc> stack = new ArrayDeque<>();
+      Deque<Iterator<Proc>> callees = new ArrayDeque<>();
+      stack.push(root);
+      callees.push(directCallees(root).iterator());
+      while (!stack.isEmpty()) {
+        if (callees.peek().hasNext()) {
+          Proc callee = callees.peek().next();
+          if (visited.add(callee)) {
+            stack.push(callee);
+            callees.push(directCallees(callee).iterator());
+          }
+        } else {
+          result.add(stack.pop());
+          callees.pop();
+        }
+      }
+    }
+    return result;
+  }
+
+  private static List<Proc> directCallees(Proc proc) {
+    List<Proc> result = new ArrayList<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Call && directCallee((Call) instr) != null) {
+          result.add(directCallee((Call) instr));
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean inlineCalls(Proc proc, AnalysisManager analyses) {
+    // only the calls present before inlining are considered
+    List<Call> calls = new ArrayList<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Call && directCallee((Call) instr) != null) {
+          calls.add((Call) instr);
+        }
+      }
+    }
+
+    boolean changed = false;
+    int recursiveInlines = 0;
+    for (Call call : calls) {
+      Proc callee = directCallee(call);
+      if (!shouldInline(proc, callee, analyses)) {
+        continue;
+      }
+      if (directCallees(callee).contains(callee)) {
+        if (recursiveInlines >= recursionLimit) {
+          continue;
+        }
+        recursiveInlines++;
+      }
+      inline(proc, call, callee);
+      sizes.put(proc, sizes.get(proc) + sizes.get(callee));
+      changed = true;
+    }
+    return changed;
+  }
+
+  private boolean shouldInline(Proc caller, Proc callee, AnalysisManager analyses) {
+    if (callee.getBasicBlocks().isEmpty()
+        // array sizes are recognized from calls of newArray
+        || callee.getName().equals("newArray")
+        || sizes.get(callee) > calleeThreshold
+        || sizes.get(caller) + sizes.get(callee) > callerLimit
+        || !callee.getBasicBlocks().get(0).getPhiNodes().isEmpty()) {
+      return false;
+    }
+    // loops make the callee larger than it looks
+    return analyses.get(ProcAnalysis.LOOPS, callee).getLoops().isEmpty();
+  }
+
+  /**
+   * Replaces the call by a copy of the body of the callee.
+   */
+  private void inline(Proc caller, Call call, Proc callee) {
+    BasicBlock block = (BasicBlock) call.getParent();
+    int callIndex = indexOf(block, call);
+
+    // null arguments get the type of the parameter, as their uses lose the context
+    Map<Variable, Operand> arguments = new HashMap<>();
+    for (int i = 0; i < callee.getParameters().size(); i++) {
+      Parameter p = callee.getParameters().get(i);
+      Operand arg = call.getArguments().get(i);
+      if (arg instanceof Nullpointer) {
+        TemporaryVar nullArg = TemporaryVar(p.getName());
+        block.add(callIndex++, Bitcast(nullArg, p.getType(), Nullpointer()));
+        arg = VarRef(nullArg);
+      }
+      arguments.put(p, arg);
+    }
+
+    List<BasicBlock> body = copyBody(callee, arguments);
+    BasicBlock entry = caller.getBasicBlocks().get(0);
+    for (BasicBlock copy : body) {
+      // allocas belong to the entry block, so they are not repeated in loops of the caller
+      for (int i = copy.size() - 1; i >= 0; i--) {
+        if (copy.get(i) instanceof Alloca) {
+          Instruction alloca = copy.get(i);
+          copy.remove(i);
+          entry.addFront(alloca);
+        }
+      }
+    }
+
+    // the rest of the block after the call
+    BasicBlock rest = BasicBlock();
+    rest.setName(callee.getName() + "_return");
+    PhiNode result = null;
+    if (!(callee.getReturnType() instanceof TypeVoid)) {
+      result = PhiNode(TemporaryVar(call.getVar().getName()), callee.getReturnType(),
+          PhiNodeChoiceList());
+      rest.add(result);
+    }
+    while (block.size() > callIndex + 1) {
+      Instruction instr = block.get(callIndex + 1);
+      block.remove(callIndex + 1);
+      rest.add(instr);
+    }
+    for (BasicBlock successor : ControlFlow.getSuccessors(rest)) {
+      for (PhiNode phi : successor.getPhiNodes()) {
+        for (PhiNodeChoice choice : phi.getChoices()) {
+          if (choice.getLabel() == block) {
+            choice.setLabel(rest);
+          }
+        }
+      }
+    }
+
+    // returns of the copy continue after the call
+    for (BasicBlock copy : body) {
+      Optional<TerminatingInstruction> t = copy.getTerminatingInstruction();
+      if (t.isEmpty()) {
+        continue;
+      }
+      if (t.get() instanceof ReturnExpr) {
+        Operand value = ((ReturnExpr) t.get()).getReturnValue();
+        Uses.removeInstruction(t.get());
+        copy.add(Jump(rest));
+        if (result != null) {
+          result.getChoices().add(PhiNodeChoice(copy, value.copy()));
+        }
+      } else if (t.get() instanceof ReturnVoid) {
+        Uses.removeInstruction(t.get());
+        copy.add(Jump(rest));
+      }
+    }
+
+    BasicBlockList blocks = caller.getBasicBlocks();
+    int position = indexOf(blocks, block) + 1;
+    for (BasicBlock copy : body) {
+      blocks.add(position++, copy);
+    }
+    blocks.add(position, rest);
+
+    // uses are collected once the rest of the block is part of the caller again
+    Map<Variable, List<VarRef>> uses = Uses.collectUses(caller);
+    Uses.removeInstruction(call);
+    block.add(Jump(body.get(0)));
+    if (result != null) {
+      Uses.replaceAll(uses.getOrDefault(call.getVar(), List.of()), VarRef(result.getVar()));
+    }
+  }
+
+  /**
+   * Copies the blocks of a procedure, replacing parameters by the given arguments
+   * and all other variables and blocks by their copies.
+   */
+  private static List<BasicBlock> copyBody(Proc proc, Map<Variable, Operand> arguments) {
+    Map<Variable, Variable> variables = new HashMap<>();
+    Map<BasicBlock, BasicBlock> blocks = new HashMap<>();
+    List<BasicBlock> result = new ArrayList<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      BasicBlock copy = block.copy();
+      copy.setName(proc.getName() + "_" + block.getName());
+      for (int i = 0; i < block.size(); i++) {
+        if (block.get(i) instanceof Assign) {
+          variables.put(((Assign) block.get(i)).getVar(), ((Assign) copy.get(i)).getVar());
+        }
+        if (block.get(i) instanceof Branch) {
+          Branch branch = (Branch) block.get(i);
+          ((Branch) copy.get(i)).setTrueWeight(branch.getTrueWeight());
+          ((Branch) copy.get(i)).setFalseWeight(branch.getFalseWeight());
+        }
+      }
+      blocks.put(block, copy);
+      result.add(copy);
+    }
+
+    for (BasicBlock copy : result) {
+      List<VarRef> parameterRefs = new ArrayList<>();
+      copy.accept(new Element.DefaultVisitor() {
+        @Override
+        public void visit(VarRef ref) {
+          Variable v = variables.get(ref.getVariable());
+          if (v != null) {
+            ref.setVariable(v);
+          } else if (arguments.containsKey(ref.getVariable())) {
+            parameterRefs.add(ref);
+          }
+        }
+
+        @Override
+        public void visit(Jump jump) {
+          jump.setLabel(blocks.get(jump.getLabel()));
+        }
+
+        @Override
+        public void visit(Branch branch) {
+          super.visit(branch);
+          branch.setIfTrueLabel(blocks.get(branch.getIfTrueLabel()));
+          branch.setIfFalseLabel(blocks.get(branch.getIfFalseLabel()));
+        }
+
+        @Override
+        public void visit(PhiNodeChoice choice) {
+          super.visit(choice);
+          choice.setLabel(blocks.get(choice.getLabel()));
+        }
+      });
+      for (VarRef ref : parameterRefs) {
+        Uses.replaceOperand(ref, arguments.get(ref.getVariable()).copy());
+      }
+    }
+    return result;
+  }
+
+  private static int indexOf(List<? extends Element> list, Element e) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i) == e) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(e + " not found");
+  }
+}
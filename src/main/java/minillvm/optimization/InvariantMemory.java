@@ -0,0 +1,85 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Recognizes memory, which is not written after its initialization:
+ * the length of an array, the virtual table pointer of an object and constant globals
+ * like the virtual tables themselves.
+ *
+ * <p>Loads from such memory always give the same value for the same address, unless the
+ * procedure is one of the procedures initializing the memory, like newArray.
+ * Those procedures store to invariant addresses and are treated as having no invariant memory.
+ */
+class InvariantMemory {
+
+  // struct names are not unique before printing, so the types are compared by identity
+  private final Set<Type> constantTypes = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final boolean enabled;
+
+  InvariantMemory(Proc proc) {
+    Element prog = proc;
+    while (prog != null && !(prog instanceof Prog)) {
+      prog = prog.getParent();
+    }
+    if (prog != null) {
+      for (Global global : ((Prog) prog).getGlobals()) {
+        if (global.getIsConstant()) {
+          constantTypes.add(global.getType());
+        }
+      }
+    }
+    enabled = !storesToInvariantMemory(proc);
+  }
+
+  private boolean storesToInvariantMemory(Proc proc) {
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Store && isInvariantAddress(((Store) instr).getAddress())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a load from the address always gives the same value in this procedure.
+   */
+  boolean isInvariant(Operand address) {
+    return enabled && isInvariantAddress(address);
+  }
+
+  private boolean isInvariantAddress(Operand address) {
+    if (address instanceof GlobalRef) {
+      return ((GlobalRef) address).getGlobal().getIsConstant();
+    }
+    Assign def = Uses.definition(address);
+    if (!(def instanceof GetElementPtr)) {
+      return false;
+    }
+    GetElementPtr gep = (GetElementPtr) def;
+    Type baseType = gep.getBaseAddress().calculateType();
+    if (!(baseType instanceof TypePointer)) {
+      return false;
+    }
+    Type to = ((TypePointer) baseType).getTo();
+    if (constantTypes.contains(to)) {
+      // a field of a constant global
+      return true;
+    }
+    if (!(to instanceof TypeStruct) || gep.getIndices().size() != 2
+        || !Uses.sameValue(gep.getIndices().get(0), Ast.ConstInt(0))
+        || !Uses.sameValue(gep.getIndices().get(1), Ast.ConstInt(0))) {
+      return false;
+    }
+    StructFieldList fields = ((TypeStruct) to).getFields();
+    if (fields.isEmpty()) {
+      return false;
+    }
+    String first = fields.get(0).getName();
+    return first.equals("length") || first.equals("vtablePtr");
+  }
+}
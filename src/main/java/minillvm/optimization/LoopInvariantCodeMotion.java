@@ -0,0 +1,366 @@
+package minillvm.optimization;
+
+import minillvm.analysis.Dominators;
+import minillvm.analysis.Loops.Loop;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * Moves computations, which give the same value in every iteration of a loop,
+ * into the preheader of the loop. Inner loops are handled first,
+ * so computations can move out of several loops.
+ *
+ * <p>Arithmetic, address computations and casts never fail and are always moved.
+ * Loads are only moved if the address can be read before the loop, i.e. it is a field or the
+ * length of a base known to be non-null there by {@link NonNullValues}, the same facts
+ * {@link NullCheckElimination} uses, or the load is in the loop header without
+ * a side effect before it. Array elements might be out of bounds before the check.
+ * Loads from other than {@link InvariantMemory} additionally require that the loop contains
+ * no call and no store to an address of the same type.
+ *
+ * <p>A branch on an invariant condition in the loop header, which leaves the loop like
+ * a null check, is moved in front of the loop. It goes the same way in every iteration,
+ * so the error is reported at the same point of execution as before. Values of the loop must
+ * not be used outside, as the exit is then reached without passing the loop.
+ */
+public class LoopInvariantCodeMotion implements FunctionPass {
+
+  private Dominators dominators;
+  private InvariantMemory invariantMemory;
+  private NonNullValues nonNull;
+
+  @Override
+  public String getName() {
+    return "licm";
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    if (analyses.get(ProcAnalysis.LOOPS, proc).getLoops().isEmpty()) {
+      return false;
+    }
+    NonNullValues.Procedures procedures = new NonNullValues.Procedures(program(proc));
+    invariantMemory = new InvariantMemory(proc);
+    boolean changed = false;
+    boolean restart = true;
+    while (restart) {
+      restart = false;
+      dominators = analyses.get(ProcAnalysis.DOMINATORS, proc);
+      Map<BasicBlock, List<BasicBlock>> predecessors =
+          analyses.get(ProcAnalysis.PREDECESSORS, proc);
+      nonNull = new NonNullValues(proc, procedures, dominators, predecessors);
+      List<Loop> loops = new ArrayList<>(analyses.get(ProcAnalysis.LOOPS, proc).getLoops());
+      // inner loops first
+      Collections.reverse(loops);
+      for (Loop loop : loops) {
+        BasicBlock preheader = loop.getPreheader();
+        if (preheader == null) {
+          if (insertPreheader(proc, loop, predecessors)) {
+            restart = true;
+            break;
+          }
+          continue;
+        }
+        changed |= hoistInvariants(loop, preheader);
+        if (hoistExitBranch(proc, loop, preheader)) {
+          restart = true;
+          break;
+        }
+      }
+      if (restart) {
+        // the control flow graph has changed
+        analyses.invalidate(proc);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static Prog program(Proc proc) {
+    Element prog = proc;
+    while (!(prog instanceof Prog)) {
+      prog = prog.getParent();
+    }
+    return (Prog) prog;
+  }
+
+  /**
+   * Adds a block, through which all edges from outside the loop enter the header.
+   * Returns false if the loop can not get a preheader.
+   */
+  private boolean insertPreheader(Proc proc, Loop loop,
+                                  Map<BasicBlock, List<BasicBlock>> predecessors) {
+    BasicBlock header = loop.getHeader();
+    List<BasicBlock> outside = new ArrayList<>();
+    for (BasicBlock pred : predecessors.get(header)) {
+      if (!loop.contains(pred) && !outside.contains(pred)) {
+        outside.add(pred);
+      }
+    }
+    if (outside.isEmpty() || header == proc.getBasicBlocks().get(0)) {
+      return false;
+    }
+
+    BasicBlock preheader = BasicBlock();
+    preheader.setName("preheader");
+    for (PhiNode phi : header.getPhiNodes()) {
+      PhiNodeChoiceList entering = PhiNodeChoiceList();
+      PhiNodeChoiceList choices = phi.getChoices();
+      for (int i = choices.size() - 1; i >= 0; i--) {
+        if (!loop.contains(choices.get(i).getLabel())) {
+          PhiNodeChoice choice = choices.get(i);
+          choices.remove(i);
+          entering.addFront(choice);
+        }
+      }
+      if (entering.size() == 1) {
+        PhiNodeChoice choice = entering.get(0);
+        entering.remove(0);
+        choice.setLabel(preheader);
+        choices.add(choice);
+      } else {
+        // the values from outside the loop are merged in the preheader
+        TemporaryVar merged = TemporaryVar(phi.getVar().getName());
+        preheader.add(PhiNode(merged, phi.getType(), entering));
+        choices.add(PhiNodeChoice(preheader, VarRef(merged)));
+      }
+    }
+    for (BasicBlock pred : outside) {
+      TerminatingInstruction t = pred.getTerminatingInstruction().get();
+      if (t instanceof Jump) {
+        ((Jump) t).setLabel(preheader);
+      } else if (t instanceof Branch) {
+        Branch branch = (Branch) t;
+        if (branch.getIfTrueLabel() == header) {
+          branch.setIfTrueLabel(preheader);
+        }
+        if (branch.getIfFalseLabel() == header) {
+          branch.setIfFalseLabel(preheader);
+        }
+      }
+    }
+    preheader.add(Jump(header));
+    BasicBlockList blocks = proc.getBasicBlocks();
+    blocks.add(blocks.indexOf(header), preheader);
+    return true;
+  }
+
+  /**
+   * Moves invariant instructions of the loop to the end of the preheader.
+   */
+  private boolean hoistInvariants(Loop loop, BasicBlock preheader) {
+    boolean hasCall = false;
+    List<Type> storedTypes = new ArrayList<>();
+    for (BasicBlock block : loop.getBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Call) {
+          hasCall = true;
+        } else if (instr instanceof Store) {
+          storedTypes.add(((Store) instr).getAddress().calculateType());
+        }
+      }
+    }
+
+    boolean changed = false;
+    for (BasicBlock block : dominators.getReversePostorder()) {
+      if (!loop.contains(block)) {
+        continue;
+      }
+      // the header is entered whenever the preheader is left
+      boolean guaranteed = block == loop.getHeader();
+      int i = 0;
+      while (i < block.size()) {
+        Instruction instr = block.get(i);
+        if (isInvariant(instr, loop)
+            && canMove(instr, preheader, guaranteed, hasCall, storedTypes)) {
+          block.remove(i);
+          preheader.add(preheader.size() - 1, instr);
+          changed = true;
+          continue;
+        }
+        guaranteed &= hasNoSideEffect(instr);
+        i++;
+      }
+    }
+    return changed;
+  }
+
+  private boolean isInvariant(Instruction instr, Loop loop) {
+    List<Operand> operands = new ArrayList<>();
+    if (instr instanceof BinaryOperation) {
+      BinaryOperation binOp = (BinaryOperation) instr;
+      operands.add(binOp.getLeft());
+      operands.add(binOp.getRight());
+    } else if (instr instanceof GetElementPtr) {
+      GetElementPtr gep = (GetElementPtr) instr;
+      operands.add(gep.getBaseAddress());
+      operands.addAll(gep.getIndices());
+    } else if (instr instanceof Select) {
+      Select select = (Select) instr;
+      operands.add(select.getCondition());
+      operands.add(select.getIfTrue());
+      operands.add(select.getIfFalse());
+    } else if (instr instanceof Bitcast) {
+      operands.add(((Bitcast) instr).getExpr());
+    } else if (instr instanceof Load) {
+      operands.add(((Load) instr).getAddress());
+    } else {
+      return false;
+    }
+    for (Operand op : operands) {
+      if (!isInvariant(op, loop)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isInvariant(Operand op, Loop loop) {
+    if (!(op instanceof VarRef)) {
+      return true;
+    }
+    Assign def = Uses.definition(op);
+    return def == null || !loop.contains((BasicBlock) def.getParent());
+  }
+
+  private boolean canMove(Instruction instr, BasicBlock preheader, boolean guaranteed,
+                          boolean hasCall, List<Type> storedTypes) {
+    if (instr instanceof BinaryOperation) {
+      BinaryOperation binOp = (BinaryOperation) instr;
+      if (binOp.getOperator() instanceof Sdiv || binOp.getOperator() instanceof Srem) {
+        // the translator guards the division by zero and overflow
+        return binOp.getRight() instanceof ConstInt
+            && ((ConstInt) binOp.getRight()).getIntVal() != 0
+            && ((ConstInt) binOp.getRight()).getIntVal() != -1;
+      }
+      return true;
+    } else if (!(instr instanceof Load)) {
+      return true;
+    }
+
+    Operand address = ((Load) instr).getAddress();
+    if (!invariantMemory.isInvariant(address)) {
+      Type type = address.calculateType();
+      if (hasCall || storedTypes.stream().anyMatch(t -> t.equalsType(type))) {
+        return false;
+      }
+    }
+    return guaranteed || isReadable(address, preheader);
+  }
+
+  private static boolean hasNoSideEffect(Instruction instr) {
+    return instr instanceof PhiNode || instr instanceof CommentInstr
+        || instr instanceof GetElementPtr || instr instanceof Bitcast || instr instanceof Select
+        || instr instanceof BinaryOperation
+        && !(((BinaryOperation) instr).getOperator() instanceof Sdiv)
+        && !(((BinaryOperation) instr).getOperator() instanceof Srem);
+  }
+
+  /**
+   * Checks whether an address can be read at the end of the given block.
+   */
+  private boolean isReadable(Operand address, BasicBlock block) {
+    if (address instanceof GlobalRef) {
+      return true;
+    }
+    Assign def = Uses.definition(address);
+    if (def instanceof Alloca) {
+      return true;
+    }
+    // only fields and the length, an element might be out of bounds
+    return def instanceof GetElementPtr
+        && isFieldAddress((GetElementPtr) def)
+        && nonNull.isNonNullAt(((GetElementPtr) def).getBaseAddress(), block);
+  }
+
+  private static boolean isFieldAddress(GetElementPtr gep) {
+    OperandList indices = gep.getIndices();
+    return indices.size() == 2
+        && indices.get(0) instanceof ConstInt && ((ConstInt) indices.get(0)).getIntVal() == 0
+        && indices.get(1) instanceof ConstInt;
+  }
+
+  /**
+   * Checks whether a value defined in the loop is used outside of it.
+   */
+  private static boolean isUsedOutside(Proc proc, Loop loop) {
+    Map<Variable, List<VarRef>> uses = Uses.collectUses(proc);
+    for (BasicBlock block : loop.getBlocks()) {
+      for (Instruction instr : block) {
+        if (!(instr instanceof Assign)) {
+          continue;
+        }
+        for (VarRef ref : uses.getOrDefault(((Assign) instr).getVar(), List.of())) {
+          Element user = ref.getParent();
+          while (!(user instanceof BasicBlock)) {
+            user = user.getParent();
+          }
+          if (!loop.contains((BasicBlock) user)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves a branch on an invariant condition from the end of the loop header in front of the
+   * loop, if one of its targets leaves the loop and nothing in the header has a side effect.
+   */
+  private boolean hoistExitBranch(Proc proc, Loop loop, BasicBlock preheader) {
+    BasicBlock header = loop.getHeader();
+    Optional<TerminatingInstruction> t = header.getTerminatingInstruction();
+    if (t.isEmpty() || !(t.get() instanceof Branch)) {
+      return false;
+    }
+    Branch branch = (Branch) t.get();
+    if (!isInvariant(branch.getCondition(), loop)
+        || loop.contains(branch.getIfTrueLabel()) == loop.contains(branch.getIfFalseLabel())) {
+      return false;
+    }
+    BasicBlock stay = loop.contains(branch.getIfTrueLabel())
+        ? branch.getIfTrueLabel() : branch.getIfFalseLabel();
+    BasicBlock exit = stay == branch.getIfTrueLabel()
+        ? branch.getIfFalseLabel() : branch.getIfTrueLabel();
+    if (!exit.getPhiNodes().isEmpty()) {
+      return false;
+    }
+    for (Instruction instr : header) {
+      if (instr != branch && !hasNoSideEffect(instr)) {
+        return false;
+      }
+    }
+    if (isUsedOutside(proc, loop)) {
+      // the exit is also reached from the preheader, where the loop values are not defined
+      return false;
+    }
+
+    // the loop is now entered through a new block after the branch
+    BasicBlock loopEntry = BasicBlock();
+    loopEntry.setName("loopEntry");
+    loopEntry.add(Jump(header));
+    for (PhiNode phi : header.getPhiNodes()) {
+      for (PhiNodeChoice choice : phi.getChoices()) {
+        if (choice.getLabel() == preheader) {
+          choice.setLabel(loopEntry);
+        }
+      }
+    }
+    Uses.removeInstruction(branch);
+    header.add(Jump(stay));
+    Uses.removeInstruction(preheader.getTerminatingInstruction().get());
+    if (stay == branch.getIfTrueLabel()) {
+      branch.setIfTrueLabel(loopEntry);
+    } else {
+      branch.setIfFalseLabel(loopEntry);
+    }
+    preheader.add(branch);
+    BasicBlockList blocks = proc.getBasicBlocks();
+    blocks.add(blocks.indexOf(header), loopEntry);
+    return true;
+  }
+}
@@ -0,0 +1,287 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.analysis.Dominators;
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * SSA construction: promotes allocas, which are only loaded from and stored to,
+ * into registers and inserts phi nodes at the dominance frontiers of the stores.
+ *
+ * <p>Follows Cytron et al., "Efficiently Computing Static Single Assignment Form and
+ * the Control Dependence Graph". Phi nodes without uses are removed afterwards.
+ */
+public class Mem2Reg implements FunctionPass {
+
+  private Proc proc;
+  private Map<Variable, List<VarRef>> uses;
+  private Map<Variable, Alloca> promoted;
+  private Map<PhiNode, Alloca> insertedPhis;
+  private Map<Alloca, Deque<Operand>> currentValues;
+  private Map<Alloca, Operand> undefinedValues;
+
+  @Override
+  public String getName() {
+    return "mem2reg";
+  }
+
+  @Override
+  public boolean preservesControlFlow() {
+    return true;
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    this.proc = proc;
+    // unreachable blocks have no dominators, but would still count as predecessors
+    boolean changed = ControlFlow.removeUnreachableBlocks(proc);
+    if (changed) {
+      analyses.invalidate(proc);
+    }
+    uses = Uses.collectUses(proc);
+    promoted = findPromotableAllocas();
+    if (promoted.isEmpty()) {
+      return changed;
+    }
+
+    Dominators dominators = analyses.get(ProcAnalysis.DOMINATORS, proc);
+    insertedPhis = new HashMap<>();
+    currentValues = new HashMap<>();
+    undefinedValues = new HashMap<>();
+    for (Alloca alloca : promoted.values()) {
+      insertPhiNodes(alloca, dominators);
+      currentValues.put(alloca, new ArrayDeque<>());
+    }
+
+    rename(dominators);
+
+    for (Alloca alloca : promoted.values()) {
+      Uses.removeInstruction(alloca);
+    }
+    removeDeadPhis();
+    return true;
+  }
+
+  /**
+   * Finds allocas of scalar type, whose address is only used by loads and as store target.
+   */
+  private Map<Variable, Alloca> findPromotableAllocas() {
+    Map<Variable, Alloca> result = new LinkedHashMap<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Alloca && isPromotable((Alloca) instr)) {
+          result.put(((Alloca) instr).getVar(), (Alloca) instr);
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean isPromotable(Alloca alloca) {
+    Type type = alloca.getType();
+    if (!(type instanceof TypeInt || type instanceof TypeBool || type instanceof TypePointer)) {
+      return false;
+    }
+    for (VarRef use : uses.getOrDefault(alloca.getVar(), List.of())) {
+      Element parent = use.getParent();
+      boolean isStoreAddress = parent instanceof Store && ((Store) parent).getAddress() == use;
+      if (!(parent instanceof Load) && !isStoreAddress) {
+        // the address escapes
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Places phi nodes on the iterated dominance frontier of the blocks storing to the alloca.
+   */
+  private void insertPhiNodes(Alloca alloca, Dominators dominators) {
+    Set<BasicBlock> definingBlocks = new HashSet<>();
+    for (VarRef use : uses.getOrDefault(alloca.getVar(), List.of())) {
+      if (use.getParent() instanceof Store) {
+        definingBlocks.add((BasicBlock) use.getParent().getParent());
+      }
+    }
+
+    Set<BasicBlock> hasPhi = new HashSet<>();
+    Deque<BasicBlock> worklist = new ArrayDeque<>(definingBlocks);
+    while (!worklist.isEmpty()) {
+      BasicBlock block = worklist.pop();
+      for (BasicBlock frontier : dominators.getDominanceFrontier(block)) {
+        if (!hasPhi.add(frontier)) {
+          continue;
+        }
+        PhiNode phi = PhiNode(TemporaryVar(alloca.getVar().getName()), alloca.getType(),
+            PhiNodeChoiceList());
+        frontier.addFront(phi);
+        insertedPhis.put(phi, alloca);
+        if (!definingBlocks.contains(frontier)) {
+          worklist.push(frontier);
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces loads by the reaching stored values, walking the dominator tree in preorder.
+   */
+  private void rename(Dominators dominators) {
+    Deque<RenameFrame> todo = new ArrayDeque<>();
+    todo.push(new RenameFrame(proc.getBasicBlocks().get(0)));
+    while (!todo.isEmpty()) {
+      RenameFrame frame = todo.peek();
+      if (frame.pushed != null) {
+        // all blocks dominated by this block are done
+        for (Alloca alloca : frame.pushed) {
+          currentValues.get(alloca).pop();
+        }
+        todo.pop();
+        continue;
+      }
+      frame.pushed = renameBlock(frame.block);
+      for (BasicBlock child : dominators.getChildren(frame.block)) {
+        todo.push(new RenameFrame(child));
+      }
+    }
+  }
+
+  /**
+   * Renames within a single block and fills the phi nodes of its successors.
+   * Returns the allocas, which got a new current value in this block.
+   */
+  private List<Alloca> renameBlock(BasicBlock block) {
+    List<Alloca> pushed = new ArrayList<>();
+    for (PhiNode phi : block.getPhiNodes()) {
+      Alloca alloca = insertedPhis.get(phi);
+      if (alloca != null) {
+        currentValues.get(alloca).push(VarRef(phi.getVar()));
+        pushed.add(alloca);
+      }
+    }
+
+    for (int i = 0; i < block.size(); i++) {
+      Instruction instr = block.get(i);
+      if (instr instanceof Load) {
+        Load load = (Load) instr;
+        Alloca alloca = promotedAlloca(load.getAddress());
+        if (alloca != null) {
+          Uses.replaceAll(uses.getOrDefault(load.getVar(), List.of()), currentValue(alloca));
+          block.remove(i--);
+        }
+      } else if (instr instanceof Store) {
+        Store store = (Store) instr;
+        Alloca alloca = promotedAlloca(store.getAddress());
+        if (alloca != null) {
+          Operand value = store.getValue();
+          if (value instanceof Nullpointer) {
+            // null only gets its type from the context, so give it a fixed type
+            TemporaryVar nullVar = TemporaryVar("null");
+            block.add(i++, Bitcast(nullVar, alloca.getType(), Nullpointer()));
+            value = VarRef(nullVar);
+          }
+          currentValues.get(alloca).push(value);
+          pushed.add(alloca);
+          block.remove(i--);
+        }
+      }
+    }
+
+    for (BasicBlock successor : ControlFlow.getSuccessors(block)) {
+      for (PhiNode phi : successor.getPhiNodes()) {
+        Alloca alloca = insertedPhis.get(phi);
+        if (alloca != null) {
+          phi.getChoices().add(PhiNodeChoice(block, currentValue(alloca).copy()));
+        }
+      }
+    }
+    return pushed;
+  }
+
+  private Alloca promotedAlloca(Operand address) {
+    if (address instanceof VarRef) {
+      return promoted.get(((VarRef) address).getVariable());
+    }
+    return null;
+  }
+
+  private Operand currentValue(Alloca alloca) {
+    Deque<Operand> values = currentValues.get(alloca);
+    if (!values.isEmpty()) {
+      return values.peek();
+    }
+    return undefinedValue(alloca);
+  }
+
+  /**
+   * Value used when reading an alloca before any store, which the translator never does
+   * on a path that is actually executed.
+   */
+  private Operand undefinedValue(Alloca alloca) {
+    Type type = alloca.getType();
+    if (type instanceof TypeInt) {
+      return ConstInt(0);
+    } else if (type instanceof TypeBool) {
+      return ConstBool(false);
+    }
+    return undefinedValues.computeIfAbsent(alloca, a -> {
+      TemporaryVar undefined = TemporaryVar("undefined");
+      proc.getBasicBlocks().get(0).addFront(Bitcast(undefined, type, Nullpointer()));
+      return VarRef(undefined);
+    });
+  }
+
+  /**
+   * Removes inserted phi nodes, which are only used by other dead phi nodes.
+   */
+  private void removeDeadPhis() {
+    uses = Uses.collectUses(proc);
+    Set<PhiNode> removed = new HashSet<>();
+    Deque<PhiNode> worklist = new ArrayDeque<>(insertedPhis.keySet());
+    while (!worklist.isEmpty()) {
+      PhiNode phi = worklist.pop();
+      if (removed.contains(phi) || isUsed(phi, removed)) {
+        continue;
+      }
+      removed.add(phi);
+      Uses.removeInstruction(phi);
+      for (PhiNodeChoice choice : phi.getChoices()) {
+        if (choice.getValue() instanceof VarRef) {
+          Element def = ((VarRef) choice.getValue()).getVariable().getParent();
+          if (def instanceof PhiNode && insertedPhis.containsKey(def)) {
+            worklist.push((PhiNode) def);
+          }
+        }
+      }
+    }
+  }
+
+  private boolean isUsed(PhiNode phi, Set<PhiNode> removed) {
+    for (VarRef use : uses.getOrDefault(phi.getVar(), List.of())) {
+      Element user = use.getParent();
+      while (!(user instanceof Instruction)) {
+        user = user.getParent();
+      }
+      if (user != phi && !removed.contains(user)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A block on the dominator tree walk, pushed is set once the block has been renamed.
+   */
+  private static class RenameFrame {
+    final BasicBlock block;
+    List<Alloca> pushed;
+
+    RenameFrame(BasicBlock block) {
+      this.block = block;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package minillvm.optimization;
+
+import minillvm.ast.Prog;
+
+/**
+ * An optimization pass working on the whole program, e.g. across procedures.
+ */
+public interface ModulePass {
+
+  /**
+   * Name of the pass, used for timings and error messages.
+   */
+  String getName();
+
+  /**
+   * Runs the pass on a program and returns whether the program was changed.
+   * Passes changing a procedure must invalidate its analyses themselves.
+   */
+  boolean run(Prog prog, AnalysisManager analyses);
+}
@@ -0,0 +1,215 @@
+package minillvm.optimization;
+
+import minillvm.analysis.Dominators;
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Values of a procedure, which are known to be non-null.
+ *
+ * <p>A value is non-null, if it is the result of an allocation, the receiver of a method,
+ * or a phi node with only non-null inputs, or if the block is dominated by the non-null edge
+ * of a null check of the same value. Casts are followed to their operand at the point of use,
+ * so the facts stay valid when a cast is moved out of a checked region.
+ * The analysis works on SSA values, so it should run after {@link Mem2Reg}.
+ */
+class NonNullValues {
+
+  private final Dominators dominators;
+  private final Set<Variable> nonNull = new HashSet<>();
+  // blocks where a value is known to be non-null, because a check on the value dominates them
+  private final Map<Variable, List<BasicBlock>> checkedRegions = new HashMap<>();
+
+  NonNullValues(Proc proc, Procedures procedures, Dominators dominators,
+                Map<BasicBlock, List<BasicBlock>> predecessors) {
+    this.dominators = dominators;
+    findCheckedRegions(proc, predecessors);
+    computeNonNullValues(proc, procedures);
+  }
+
+  /**
+   * Returns the comparison with null, if the branch is a null check.
+   */
+  static BinaryOperation nullCheck(Branch branch) {
+    if (!(branch.getCondition() instanceof VarRef)
+        || branch.getIfTrueLabel() == branch.getIfFalseLabel()) {
+      return null;
+    }
+    Element def = ((VarRef) branch.getCondition()).getVariable().getParent();
+    if (!(def instanceof BinaryOperation)) {
+      return null;
+    }
+    BinaryOperation binOp = (BinaryOperation) def;
+    if (!(binOp.getOperator() instanceof Eq)) {
+      return null;
+    }
+    boolean leftNull = binOp.getLeft() instanceof Nullpointer;
+    boolean rightNull = binOp.getRight() instanceof Nullpointer;
+    if (leftNull == rightNull) {
+      return null;
+    }
+    return binOp;
+  }
+
+  static Operand checkedOperand(BinaryOperation check) {
+    return check.getLeft() instanceof Nullpointer ? check.getRight() : check.getLeft();
+  }
+
+  /**
+   * Checks whether the operand is known to be non-null at the end of the block.
+   */
+  boolean isNonNullAt(Operand op, BasicBlock block) {
+    if (op instanceof GlobalRef || op instanceof ProcedureRef) {
+      return true;
+    } else if (!(op instanceof VarRef)) {
+      return false;
+    }
+    Variable v = ((VarRef) op).getVariable();
+    if (nonNull.contains(v)) {
+      return true;
+    }
+    if (v.getParent() instanceof Bitcast
+        && isNonNullAt(((Bitcast) v.getParent()).getExpr(), block)) {
+      return true;
+    }
+    for (BasicBlock region : checkedRegions.getOrDefault(v, List.of())) {
+      if (dominators.dominates(region, block)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void findCheckedRegions(Proc proc, Map<BasicBlock, List<BasicBlock>> predecessors) {
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (t.isEmpty() || !(t.get() instanceof Branch)) {
+        continue;
+      }
+      Branch branch = (Branch) t.get();
+      BinaryOperation check = nullCheck(branch);
+      if (check == null || !(checkedOperand(check) instanceof VarRef)) {
+        continue;
+      }
+      // the fact only holds in the target, if it can only be entered through the check
+      BasicBlock notNull = branch.getIfFalseLabel();
+      if (predecessors.get(notNull).size() == 1) {
+        Variable v = ((VarRef) checkedOperand(check)).getVariable();
+        checkedRegions.computeIfAbsent(v, k -> new ArrayList<>()).add(notNull);
+      }
+    }
+  }
+
+  /**
+   * Computes the non-null values starting from the assumption that all pointer phi nodes
+   * are non-null and dropping phi nodes with a possibly null input until nothing changes.
+   */
+  private void computeNonNullValues(Proc proc, Procedures procedures) {
+    Set<PhiNode> phis = new HashSet<>();
+    for (BasicBlock block : dominators.getReversePostorder()) {
+      for (PhiNode phi : block.getPhiNodes()) {
+        if (phi.getType() instanceof TypePointer) {
+          phis.add(phi);
+        }
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      nonNull.clear();
+      if (procedures.isMethod(proc) && !proc.getParameters().isEmpty()) {
+        nonNull.add(proc.getParameters().get(0));
+      }
+      for (BasicBlock block : dominators.getReversePostorder()) {
+        for (Instruction instr : block) {
+          if (instr instanceof PhiNode && phis.contains(instr)) {
+            nonNull.add(((PhiNode) instr).getVar());
+          } else if (instr instanceof Alloc) {
+            nonNull.add(((Alloc) instr).getVar());
+          } else if (instr instanceof AllocZeroed) {
+            nonNull.add(((AllocZeroed) instr).getVar());
+          } else if (instr instanceof Alloca) {
+            nonNull.add(((Alloca) instr).getVar());
+          } else if (instr instanceof Call && procedures.isAllocatingCall((Call) instr)) {
+            nonNull.add(((Call) instr).getVar());
+          }
+        }
+      }
+      changed = phis.removeIf(phi -> {
+        for (PhiNodeChoice choice : phi.getChoices()) {
+          if (!isNonNullAt(choice.getValue(), choice.getLabel())) {
+            return true;
+          }
+        }
+        return false;
+      });
+    }
+  }
+
+  /**
+   * The procedures of a program, whose receiver or result is known to be non-null.
+   */
+  static class Procedures {
+
+    private final Set<Proc> methods = new HashSet<>();
+    private final Set<Proc> allocatingProcs = new HashSet<>();
+
+    Procedures(Prog prog) {
+      findMethods(prog);
+      findAllocatingProcs(prog);
+    }
+
+    boolean isMethod(Proc proc) {
+      return methods.contains(proc);
+    }
+
+    boolean isAllocatingCall(Call call) {
+      return call.getFunction() instanceof ProcedureRef
+          && allocatingProcs.contains(((ProcedureRef) call.getFunction()).getProcedure());
+    }
+
+    /**
+     * Methods are referenced from the virtual tables, they are only called with a receiver.
+     */
+    private void findMethods(Prog prog) {
+      for (Global global : prog.getGlobals()) {
+        global.accept(new Element.DefaultVisitor() {
+          @Override
+          public void visit(ProcedureRef ref) {
+            methods.add(ref.getProcedure());
+          }
+        });
+      }
+    }
+
+    /**
+     * Finds procedures, which return a freshly allocated object like newArray.
+     */
+    private void findAllocatingProcs(Prog prog) {
+      for (Proc proc : prog.getProcedures()) {
+        boolean allocating = proc.getReturnType() instanceof TypePointer;
+        for (BasicBlock block : proc.getBasicBlocks()) {
+          Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+          if (t.isPresent() && t.get() instanceof ReturnExpr) {
+            allocating &= isAllocation(((ReturnExpr) t.get()).getReturnValue());
+          }
+        }
+        if (allocating) {
+          allocatingProcs.add(proc);
+        }
+      }
+    }
+
+    private static boolean isAllocation(Operand op) {
+      if (!(op instanceof VarRef)) {
+        return false;
+      }
+      Element def = ((VarRef) op).getVariable().getParent();
+      if (def instanceof Bitcast) {
+        return isAllocation(((Bitcast) def).getExpr());
+      }
+      return def instanceof Alloc || def instanceof AllocZeroed;
+    }
+  }
+}
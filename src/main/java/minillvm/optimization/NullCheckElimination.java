@@ -0,0 +1,73 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.analysis.Dominators;
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Removes null checks on values, which are known to be non-null.
+ *
+ * <p>A null check is a branch on {@code x == null}, which values are non-null is decided by
+ * {@link NonNullValues}. It works on SSA values, so it should run after {@link Mem2Reg}.
+ */
+public class NullCheckElimination implements ModulePass {
+
+  @Override
+  public String getName() {
+    return "null-check-elimination";
+  }
+
+  @Override
+  public boolean run(Prog prog, AnalysisManager analyses) {
+    NonNullValues.Procedures procedures = new NonNullValues.Procedures(prog);
+    boolean changed = false;
+    for (Proc proc : prog.getProcedures()) {
+      if (optimize(proc, procedures, analyses)) {
+        analyses.invalidate(proc);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private boolean optimize(Proc proc, NonNullValues.Procedures procedures,
+                           AnalysisManager analyses) {
+    Dominators dominators = analyses.get(ProcAnalysis.DOMINATORS, proc);
+    NonNullValues nonNull = new NonNullValues(proc, procedures, dominators,
+        analyses.get(ProcAnalysis.PREDECESSORS, proc));
+
+    List<BinaryOperation> removedChecks = new ArrayList<>();
+    for (BasicBlock block : dominators.getReversePostorder()) {
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (t.isEmpty() || !(t.get() instanceof Branch)) {
+        continue;
+      }
+      Branch branch = (Branch) t.get();
+      BinaryOperation check = NonNullValues.nullCheck(branch);
+      if (check == null
+          || !nonNull.isNonNullAt(NonNullValues.checkedOperand(check), block)) {
+        continue;
+      }
+      // the value is not null, so the check always takes the false edge
+      BasicBlock ifNull = branch.getIfTrueLabel();
+      ControlFlow.removePhiChoices(ifNull, block);
+      Uses.removeInstruction(branch);
+      block.add(Ast.Jump(branch.getIfFalseLabel()));
+      removedChecks.add(check);
+    }
+    if (removedChecks.isEmpty()) {
+      return false;
+    }
+
+    Map<Variable, List<VarRef>> uses = Uses.collectUses(proc);
+    for (BinaryOperation check : removedChecks) {
+      if (!uses.containsKey(check.getVar())) {
+        Uses.removeInstruction(check);
+      }
+    }
+    ControlFlow.removeUnreachableBlocks(proc);
+    return true;
+  }
+}
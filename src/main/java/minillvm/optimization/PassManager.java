@@ -0,0 +1,127 @@
+package minillvm.optimization;
+
+import minillvm.analysis.Checks;
+import minillvm.analysis.LlvmTypeError;
+import minillvm.ast.Proc;
+import minillvm.ast.Prog;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a sequence of function and module passes on a program.
+ * Function passes are run on every procedure before the next pass starts.
+ */
+public class PassManager {
+
+  private final List<Object> passes = new ArrayList<>();
+  private final Map<String, Long> timings = new LinkedHashMap<>();
+  private final AnalysisManager analyses = new AnalysisManager();
+  private boolean verify = false;
+  private boolean timing = false;
+
+  /**
+   * Adds a pass running on every procedure.
+   */
+  public PassManager add(FunctionPass pass) {
+    passes.add(pass);
+    return this;
+  }
+
+  /**
+   * Adds a pass running on the whole program.
+   */
+  public PassManager add(ModulePass pass) {
+    passes.add(pass);
+    return this;
+  }
+
+  /**
+   * When enabled, the program is checked with {@link Checks} after every pass.
+   */
+  public void setVerify(boolean verify) {
+    this.verify = verify;
+  }
+
+  /**
+   * When enabled, the time spent in every pass is recorded.
+   */
+  public void setTiming(boolean timing) {
+    this.timing = timing;
+  }
+
+  public AnalysisManager getAnalyses() {
+    return analyses;
+  }
+
+  /**
+   * Runs all passes in order and returns whether the program was changed.
+   */
+  public boolean run(Prog prog) {
+    boolean changed = false;
+    for (Object pass : passes) {
+      long start = System.nanoTime();
+      String name;
+      if (pass instanceof FunctionPass) {
+        FunctionPass functionPass = (FunctionPass) pass;
+        name = functionPass.getName();
+        for (Proc proc : prog.getProcedures()) {
+          changed |= runOnProc(functionPass, proc);
+        }
+      } else {
+        ModulePass modulePass = (ModulePass) pass;
+        name = modulePass.getName();
+        changed |= modulePass.run(prog, analyses);
+      }
+      if (timing) {
+        timings.merge(name, System.nanoTime() - start, Long::sum);
+      }
+      if (verify) {
+        verify(prog, name);
+      }
+    }
+    return changed;
+  }
+
+  private boolean runOnProc(FunctionPass pass, Proc proc) {
+    if (!pass.run(proc, analyses)) {
+      return false;
+    }
+    if (pass.preservesControlFlow()) {
+      analyses.invalidateExceptControlFlow(proc);
+    } else {
+      analyses.invalidate(proc);
+    }
+    return true;
+  }
+
+  private void verify(Prog prog, String passName) {
+    try {
+      new Checks().checkProgram(prog);
+    } catch (LlvmTypeError e) {
+      throw new RuntimeException("Invalid program after pass " + passName + ": " + e, e);
+    }
+  }
+
+  /**
+   * Returns the accumulated time of every pass in nanoseconds, in order of first execution.
+   */
+  public Map<String, Long> getTimings() {
+    return timings;
+  }
+
+  /**
+   * Prints the recorded timings.
+   */
+  public void printTimings(PrintStream out) {
+    long total = 0;
+    for (Map.Entry<String, Long> e : timings.entrySet()) {
+      out.printf("%10.3f ms  %s%n", e.getValue() / 1e6, e.getKey());
+      total += e.getValue();
+    }
+    out.printf("%10.3f ms  total%n", total / 1e6);
+  }
+}
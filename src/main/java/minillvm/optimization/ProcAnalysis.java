@@ -0,0 +1,61 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.analysis.Dominators;
+import minillvm.analysis.Loops;
+import minillvm.ast.BasicBlock;
+import minillvm.ast.Proc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * An analysis of a procedure, whose result is cached by the {@link AnalysisManager}.
+ */
+public final class ProcAnalysis<T> {
+
+  public static final ProcAnalysis<Map<BasicBlock, List<BasicBlock>>> PREDECESSORS =
+      new ProcAnalysis<>("predecessors", true, (proc, analyses) ->
+          ControlFlow.getPredecessors(proc));
+
+  public static final ProcAnalysis<Dominators> DOMINATORS =
+      new ProcAnalysis<>("dominators", true, (proc, analyses) ->
+          new Dominators(proc, analyses.get(PREDECESSORS, proc)));
+
+  public static final ProcAnalysis<Loops> LOOPS =
+      new ProcAnalysis<>("loops", true, (proc, analyses) ->
+          new Loops(analyses.get(PREDECESSORS, proc), analyses.get(DOMINATORS, proc)));
+
+  private final String name;
+  private final boolean controlFlowOnly;
+  private final BiFunction<Proc, AnalysisManager, T> compute;
+
+  /**
+   * Creates an analysis. Analyses which only depend on the control flow graph
+   * stay valid after passes preserving the control flow.
+   */
+  public ProcAnalysis(String name, boolean controlFlowOnly,
+                      BiFunction<Proc, AnalysisManager, T> compute) {
+    this.name = name;
+    this.controlFlowOnly = controlFlowOnly;
+    this.compute = compute;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isControlFlowOnly() {
+    return controlFlowOnly;
+  }
+
+  T compute(Proc proc, AnalysisManager analyses) {
+    return compute.apply(proc, analyses);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,327 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * Prepares a program for the precise garbage collector of the runtime library,
+ * see {@link minillvm.printer.Allocator#GC}.
+ *
+ * <p>Every procedure holding heap pointers across a call or an allocation pushes a frame
+ * onto the shadow stack, a linked list starting at the global {@code nqj_gc_top}.
+ * A frame contains a slot for each such pointer: the value is stored into its slot when it
+ * is defined, and local variables still kept in memory live in their slot directly.
+ * The frame is popped before returning. Pointers used only before the next call or
+ * allocation need no slot, as the collector only runs on allocations.
+ *
+ * <p>Objects and arrays containing heap pointers get a type map derived from their struct:
+ * the number of pointer fields, the offset of pointer elements or -1 and the offsets of
+ * the pointer fields. It is stored into the header word before the object right after the
+ * allocation. The vtable pointer is not a heap pointer and not part of the maps.
+ *
+ * <p>The pass runs after the optimizations, as they do not know about the frames.
+ */
+public class ShadowStack implements ModulePass {
+
+  private static final String TOP = "nqj_gc_top";
+
+  private final Set<TypeStruct> heapStructs = new HashSet<>();
+  private final Map<TypeStruct, Global> typeMaps = new HashMap<>();
+  private Global top;
+  private Map<Variable, List<VarRef>> uses;
+
+  @Override
+  public String getName() {
+    return "shadow-stack";
+  }
+
+  @Override
+  public boolean run(Prog prog, AnalysisManager analyses) {
+    heapStructs.clear();
+    typeMaps.clear();
+    List<TypeStruct> structs = new ArrayList<>(prog.getStructTypes());
+    for (TypeStruct struct : structs) {
+      if (!struct.getFields().isEmpty()) {
+        String first = struct.getFields().get(0).getName();
+        if (first.equals("vtablePtr") || first.equals("length")) {
+          heapStructs.add(struct);
+        }
+      }
+    }
+    for (TypeStruct struct : structs) {
+      if (heapStructs.contains(struct)) {
+        createTypeMap(prog, struct);
+      }
+    }
+    top = Global(TypePointer(TypeByte()), TOP, false, Nullpointer());
+    prog.getGlobals().add(top);
+
+    for (Proc proc : prog.getProcedures()) {
+      if (!proc.getBasicBlocks().isEmpty()) {
+        instrument(prog, proc);
+        analyses.invalidate(proc);
+      }
+    }
+    return true;
+  }
+
+  private boolean isHeapPointer(Type type) {
+    return type instanceof TypePointer && heapStructs.contains(((TypePointer) type).getTo());
+  }
+
+  private void createTypeMap(Prog prog, TypeStruct struct) {
+    List<Integer> offsets = new ArrayList<>();
+    int elementsOffset = -1;
+    StructFieldList fields = struct.getFields();
+    if (fields.get(0).getName().equals("length")) {
+      Type elementType = ((TypeArray) fields.get(1).getType()).getOf();
+      if (isHeapPointer(elementType)) {
+        elementsOffset = align(4, alignment(elementType));
+      }
+    } else {
+      int offset = 8;
+      for (int i = 1; i < fields.size(); i++) {
+        Type type = fields.get(i).getType();
+        offset = align(offset, alignment(type));
+        if (isHeapPointer(type)) {
+          offsets.add(offset);
+        }
+        offset += size(type);
+      }
+    }
+    if (offsets.isEmpty() && elementsOffset < 0) {
+      // nothing to scan, the header is zero
+      return;
+    }
+
+    TypeStruct mapType = TypeStruct("typemap_" + struct.getName(), StructFieldList(
+        StructField(TypeInt(), "fieldCount"), StructField(TypeInt(), "elementsOffset")));
+    ConstList values = ConstList(ConstInt(offsets.size()), ConstInt(elementsOffset));
+    for (int i = 0; i < offsets.size(); i++) {
+      mapType.getFields().add(StructField(TypeInt(), "offset" + i));
+      values.add(ConstInt(offsets.get(i)));
+    }
+    prog.getStructTypes().add(mapType);
+    Global map = Global(mapType, mapType.getName(), true, ConstStruct(mapType, values));
+    prog.getGlobals().add(map);
+    typeMaps.put(struct, map);
+  }
+
+  private static int align(int offset, int alignment) {
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+  private static int size(Type type) {
+    if (type instanceof TypePointer) {
+      return 8;
+    } else if (type instanceof TypeInt) {
+      return 4;
+    }
+    return 1;
+  }
+
+  private static int alignment(Type type) {
+    return size(type);
+  }
+
+  private void instrument(Prog prog, Proc proc) {
+    uses = Uses.collectUses(proc);
+    storeTypeMaps(proc);
+
+    BasicBlock oldEntry = proc.getBasicBlocks().get(0);
+    List<Variable> roots = new ArrayList<>();
+    for (Parameter p : proc.getParameters()) {
+      if (isHeapPointer(p.getType()) && needsSlot(p, oldEntry, -1)) {
+        roots.add(p);
+      }
+    }
+    List<Alloca> rootAllocas = new ArrayList<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (int i = 0; i < block.size(); i++) {
+        Instruction instr = block.get(i);
+        if (instr instanceof Alloca && isHeapPointer(((Alloca) instr).getType())) {
+          rootAllocas.add((Alloca) instr);
+        } else if (instr instanceof Assign && !(instr instanceof Alloca)) {
+          TemporaryVar v = ((Assign) instr).getVar();
+          if (isHeapPointer(v.calculateType()) && !isOnStack(v) && needsSlot(v, block, i)) {
+            roots.add(v);
+          }
+        }
+      }
+    }
+    if (roots.isEmpty() && rootAllocas.isEmpty()) {
+      return;
+    }
+
+    // push the frame in a new entry block
+    int slotCount = roots.size() + rootAllocas.size();
+    TypeStruct frameType = TypeStruct("frame_" + proc.getName(), StructFieldList(
+        StructField(TypePointer(TypeByte()), "next"),
+        StructField(TypeInt(), "count"),
+        StructField(TypeArray(TypePointer(TypeByte()), slotCount), "roots")));
+    prog.getStructTypes().add(frameType);
+    BasicBlock entry = BasicBlock();
+    entry.setName("gcEntry");
+    TemporaryVar frame = TemporaryVar("frame");
+    entry.add(Alloca(frame, frameType));
+    TemporaryVar nextAddr = TemporaryVar("nextFrameAddr");
+    entry.add(GetElementPtr(nextAddr, VarRef(frame), OperandList(ConstInt(0), ConstInt(0))));
+    TemporaryVar next = TemporaryVar("nextFrame");
+    entry.add(Load(next, GlobalRef(top)));
+    entry.add(Store(VarRef(nextAddr), VarRef(next)));
+    TemporaryVar countAddr = TemporaryVar("slotCountAddr");
+    entry.add(GetElementPtr(countAddr, VarRef(frame), OperandList(ConstInt(0), ConstInt(1))));
+    entry.add(Store(VarRef(countAddr), ConstInt(slotCount)));
+    List<TemporaryVar> slots = new ArrayList<>();
+    for (int i = 0; i < slotCount; i++) {
+      TemporaryVar slot = TemporaryVar("slot" + i);
+      entry.add(GetElementPtr(slot, VarRef(frame),
+          OperandList(ConstInt(0), ConstInt(2), ConstInt(i))));
+      entry.add(Store(VarRef(slot), Nullpointer()));
+      slots.add(slot);
+    }
+    TemporaryVar frameBytes = TemporaryVar("frameBytes");
+    entry.add(Bitcast(frameBytes, TypePointer(TypeByte()), VarRef(frame)));
+    entry.add(Store(GlobalRef(top), VarRef(frameBytes)));
+
+    // local variables in memory live in their slot
+    int slotIndex = 0;
+    for (Alloca alloca : rootAllocas) {
+      TemporaryVar local = TemporaryVar(alloca.getVar().getName());
+      entry.add(Bitcast(local, TypePointer(alloca.getType()), VarRef(slots.get(slotIndex++))));
+      Uses.replaceAll(uses.getOrDefault(alloca.getVar(), List.of()), VarRef(local));
+      Uses.removeInstruction(alloca);
+    }
+    for (Variable root : roots) {
+      TemporaryVar slot = slots.get(slotIndex++);
+      if (root instanceof Parameter) {
+        storeIntoSlot(entry, entry.size(), root, slot);
+      } else {
+        Instruction def = (Instruction) root.getParent();
+        BasicBlock block = (BasicBlock) def.getParent();
+        int position = def instanceof PhiNode
+            ? block.getPhiNodes().size() : indexOf(block, def) + 1;
+        storeIntoSlot(block, position, root, slot);
+      }
+    }
+    entry.add(Jump(oldEntry));
+    proc.getBasicBlocks().addFront(entry);
+
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (Instruction instr : block) {
+        if (instr instanceof Call) {
+          // the callee walks the frames, including the frame of this procedure
+          ((Call) instr).setTail(false);
+        }
+      }
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (t.isPresent() && (t.get() instanceof ReturnExpr || t.get() instanceof ReturnVoid)) {
+        // pop the frame
+        TemporaryVar previous = TemporaryVar("previousFrame");
+        block.add(block.size() - 1, Load(previous, VarRef(nextAddr)));
+        block.add(block.size() - 1, Store(GlobalRef(top), VarRef(previous)));
+      }
+    }
+  }
+
+  /**
+   * Checks whether a variable points to an array moved to the stack by {@link EscapeAnalysis}.
+   */
+  private static boolean isOnStack(TemporaryVar v) {
+    Assign def = (Assign) v.getParent();
+    while (def instanceof Bitcast) {
+      def = Uses.definition(((Bitcast) def).getExpr());
+    }
+    return def instanceof Alloca;
+  }
+
+  private static void storeIntoSlot(BasicBlock block, int position, Variable root,
+                                    TemporaryVar slot) {
+    TemporaryVar bytes = TemporaryVar(root.getName() + "_root");
+    block.add(position, Bitcast(bytes, TypePointer(TypeByte()), VarRef(root)));
+    block.add(position + 1, Store(VarRef(slot), VarRef(bytes)));
+  }
+
+  /**
+   * Stores the type map of each allocated object, which is cast to a struct with a map.
+   */
+  private void storeTypeMaps(Proc proc) {
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (int i = 0; i < block.size(); i++) {
+        Instruction instr = block.get(i);
+        if (!(instr instanceof Alloc || instr instanceof AllocZeroed)) {
+          continue;
+        }
+        TemporaryVar allocated = ((Assign) instr).getVar();
+        Global map = null;
+        for (VarRef ref : uses.getOrDefault(allocated, List.of())) {
+          if (ref.getParent() instanceof Bitcast) {
+            Type type = ((Bitcast) ref.getParent()).getType();
+            if (type instanceof TypePointer) {
+              map = typeMaps.get(((TypePointer) type).getTo());
+            }
+          }
+        }
+        if (map == null) {
+          continue;
+        }
+        // the header word right before the object
+        TemporaryVar headerAddr = TemporaryVar("typeMapAddr");
+        TemporaryVar header = TemporaryVar("typeMapSlot");
+        TemporaryVar mapBytes = TemporaryVar("typeMap");
+        block.add(++i, GetElementPtr(headerAddr, VarRef(allocated),
+            OperandList(ConstInt(-8))));
+        block.add(++i, Bitcast(header, TypePointer(TypePointer(TypeByte())),
+            VarRef(headerAddr)));
+        block.add(++i, Bitcast(mapBytes, TypePointer(TypeByte()), GlobalRef(map)));
+        block.add(++i, Store(VarRef(header), VarRef(mapBytes)));
+      }
+    }
+  }
+
+  /**
+   * Checks whether the value of a variable defined at the given position has to survive
+   * a call or an allocation, so it must be visible to the collector. Addresses derived from
+   * the value by casts and getelementptr keep the object alive until their last use.
+   */
+  private boolean needsSlot(Variable v, BasicBlock defBlock, int defIndex) {
+    int lastUse = defIndex;
+    Deque<Variable> todo = new ArrayDeque<>();
+    todo.push(v);
+    while (!todo.isEmpty()) {
+      for (VarRef ref : uses.getOrDefault(todo.pop(), List.of())) {
+        Element user = ref;
+        while (!(user instanceof Instruction)) {
+          user = user.getParent();
+        }
+        if (user instanceof PhiNode || user.getParent() != defBlock) {
+          return true;
+        }
+        lastUse = Math.max(lastUse, indexOf(defBlock, (Instruction) user));
+        if (user instanceof Bitcast || user instanceof GetElementPtr) {
+          todo.push(((Assign) user).getVar());
+        }
+      }
+    }
+    // a call using the value itself roots it in the frame of the callee
+    for (int i = defIndex + 1; i < lastUse; i++) {
+      Instruction instr = defBlock.get(i);
+      if (instr instanceof Call || instr instanceof Alloc || instr instanceof AllocZeroed) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int indexOf(BasicBlock block, Instruction instr) {
+    for (int i = 0; i < block.size(); i++) {
+      if (block.get(i) == instr) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(instr + " not found");
+  }
+}
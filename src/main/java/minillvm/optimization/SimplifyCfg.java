@@ -0,0 +1,257 @@
+package minillvm.optimization;
+
+import minillvm.analysis.ControlFlow;
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Simplifies the control flow graph of a procedure until nothing changes:
+ * removes unreachable blocks, turns branches with equal targets or a constant condition
+ * into jumps, threads jumps through blocks containing nothing but a jump,
+ * and merges a block into its predecessor, if the predecessor jumps only to it.
+ * Phi nodes, which are left with a single value, are replaced by that value.
+ */
+public class SimplifyCfg implements FunctionPass {
+
+  @Override
+  public String getName() {
+    return "simplify-cfg";
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    boolean changed = false;
+    boolean changedNow = true;
+    while (changedNow) {
+      changedNow = ControlFlow.removeUnreachableBlocks(proc);
+      changedNow |= simplifyBranches(proc);
+      changedNow |= removeTrivialPhis(proc);
+      changedNow |= threadJumps(proc);
+      changedNow |= mergeBlocks(proc);
+      changed |= changedNow;
+    }
+    if (changed) {
+      // conditions of removed branches
+      DeadCodeElimination.removeDeadInstructions(proc);
+    }
+    return changed;
+  }
+
+  /**
+   * Replaces branches with a constant condition or two equal targets by jumps.
+   */
+  private boolean simplifyBranches(Proc proc) {
+    boolean changed = false;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+      if (t.isEmpty() || !(t.get() instanceof Branch)) {
+        continue;
+      }
+      Branch branch = (Branch) t.get();
+      BasicBlock target;
+      BasicBlock other;
+      if (branch.getCondition() instanceof ConstBool
+          && !((ConstBool) branch.getCondition()).getBoolVal()) {
+        target = branch.getIfFalseLabel();
+        other = branch.getIfTrueLabel();
+      } else if (branch.getCondition() instanceof ConstBool
+          || branch.getIfTrueLabel() == branch.getIfFalseLabel()) {
+        target = branch.getIfTrueLabel();
+        other = branch.getIfFalseLabel();
+      } else {
+        continue;
+      }
+      // the other edge goes away, with two equal targets this is one of the two phi choices
+      ControlFlow.removePhiChoices(other, block);
+      Uses.removeInstruction(branch);
+      block.add(Ast.Jump(target));
+      changed = true;
+    }
+    return changed;
+  }
+
+  /**
+   * Replaces phi nodes with a single choice, or the same value in every choice, by the value.
+   */
+  private boolean removeTrivialPhis(Proc proc) {
+    List<PhiNode> trivial = new ArrayList<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      for (PhiNode phi : block.getPhiNodes()) {
+        if (singleValue(phi) != null) {
+          trivial.add(phi);
+        }
+      }
+    }
+    if (trivial.isEmpty()) {
+      return false;
+    }
+    Map<Variable, List<VarRef>> uses = Uses.collectUses(proc);
+    for (PhiNode phi : trivial) {
+      // an earlier replacement might have changed the choices
+      Operand value = singleValue(phi);
+      if (value == null) {
+        continue;
+      }
+      Uses.removeInstruction(phi);
+      Uses.replaceAll(uses.getOrDefault(phi.getVar(), List.of()), value);
+      // the replaced references are now part of other instructions
+      uses = Uses.collectUses(proc);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the value of a phi node, if all choices have the same value.
+   * References to the phi node itself are ignored.
+   */
+  private static Operand singleValue(PhiNode phi) {
+    Operand result = null;
+    for (PhiNodeChoice choice : phi.getChoices()) {
+      Operand value = choice.getValue();
+      if (value instanceof VarRef && ((VarRef) value).getVariable() == phi.getVar()) {
+        continue;
+      }
+      if (result == null) {
+        result = value;
+      } else if (!Uses.sameValue(result, value)) {
+        return null;
+      }
+    }
+    if (result instanceof Nullpointer) {
+      // null needs the type of the phi node
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Lets predecessors of a block, which only contains a jump, jump to its target directly.
+   */
+  private boolean threadJumps(Proc proc) {
+    Map<BasicBlock, List<BasicBlock>> predecessors = ControlFlow.getPredecessors(proc);
+    BasicBlock entry = proc.getBasicBlocks().get(0);
+    boolean changed = false;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      if (block == entry || !isEmptyJump(block)) {
+        continue;
+      }
+      BasicBlock target = ((Jump) block.getTerminatingInstruction().get()).getLabel();
+      if (target == block) {
+        continue;
+      }
+      for (BasicBlock pred : new ArrayList<>(predecessors.get(block))) {
+        if (pred == block || !canRedirect(pred, block, target, predecessors)) {
+          continue;
+        }
+        redirect(pred, block, target);
+        predecessors.get(block).remove(pred);
+        predecessors.get(target).add(pred);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static boolean isEmptyJump(BasicBlock block) {
+    for (Instruction instr : block) {
+      if (!(instr instanceof CommentInstr || instr instanceof Jump)) {
+        return false;
+      }
+    }
+    return block.getTerminatingInstruction().isPresent();
+  }
+
+  /**
+   * A predecessor can jump to the target directly, if the phi nodes of the target
+   * do not already have a choice for it, which might differ from the one through the block.
+   */
+  private static boolean canRedirect(BasicBlock pred, BasicBlock block, BasicBlock target,
+                                     Map<BasicBlock, List<BasicBlock>> predecessors) {
+    return target.getPhiNodes().isEmpty() || !predecessors.get(target).contains(pred);
+  }
+
+  private static void redirect(BasicBlock pred, BasicBlock block, BasicBlock target) {
+    TerminatingInstruction t = pred.getTerminatingInstruction().get();
+    int edges = 0;
+    if (t instanceof Jump) {
+      ((Jump) t).setLabel(target);
+      edges = 1;
+    } else if (t instanceof Branch) {
+      Branch branch = (Branch) t;
+      if (branch.getIfTrueLabel() == block) {
+        branch.setIfTrueLabel(target);
+        edges++;
+      }
+      if (branch.getIfFalseLabel() == block) {
+        branch.setIfFalseLabel(target);
+        edges++;
+      }
+    }
+    // the values coming through the block now come from the predecessor
+    for (PhiNode phi : target.getPhiNodes()) {
+      for (PhiNodeChoice choice : new ArrayList<>(phi.getChoices())) {
+        if (choice.getLabel() == block) {
+          for (int i = 0; i < edges; i++) {
+            phi.getChoices().add(Ast.PhiNodeChoice(pred, choice.getValue().copy()));
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends a block to its only predecessor, if the predecessor jumps only to it.
+   */
+  private boolean mergeBlocks(Proc proc) {
+    Map<BasicBlock, List<BasicBlock>> predecessors = ControlFlow.getPredecessors(proc);
+    BasicBlock entry = proc.getBasicBlocks().get(0);
+    Set<BasicBlock> removed = new HashSet<>();
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      if (removed.contains(block)) {
+        continue;
+      }
+      while (true) {
+        Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+        if (t.isEmpty() || !(t.get() instanceof Jump)) {
+          break;
+        }
+        BasicBlock next = ((Jump) t.get()).getLabel();
+        if (next == block || next == entry || predecessors.get(next).size() != 1
+            || !next.getPhiNodes().isEmpty()) {
+          break;
+        }
+        Uses.removeInstruction(t.get());
+        while (!next.isEmpty()) {
+          Instruction instr = next.get(0);
+          next.remove(0);
+          block.add(instr);
+        }
+        // successors of the merged block are now reached from this block
+        for (BasicBlock successor : ControlFlow.getSuccessors(block)) {
+          for (PhiNode phi : successor.getPhiNodes()) {
+            for (PhiNodeChoice choice : phi.getChoices()) {
+              if (choice.getLabel() == next) {
+                choice.setLabel(block);
+              }
+            }
+          }
+          List<BasicBlock> preds = predecessors.get(successor);
+          preds.replaceAll(p -> p == next ? block : p);
+        }
+        removed.add(next);
+      }
+    }
+    if (removed.isEmpty()) {
+      return false;
+    }
+    BasicBlockList blocks = proc.getBasicBlocks();
+    for (int i = blocks.size() - 1; i >= 0; i--) {
+      if (removed.contains(blocks.get(i))) {
+        blocks.remove(i);
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,265 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+
+/**
+ * Turns recursive calls of a procedure to itself in tail position into a loop,
+ * so deep recursion runs in constant stack space.
+ *
+ * <p>A call is in tail position, if its result is returned directly. A call whose result
+ * is combined with another value by an associative operator like in {@code n * fact(n - 1)}
+ * is handled as well: an accumulator collects the other values and is combined with
+ * the values of all other returns.
+ *
+ * <p>The entry block becomes the loop header with a phi node for each parameter,
+ * and the recursive calls become jumps to it. Remaining calls in tail position
+ * are marked as tail calls.
+ */
+public class TailRecursionElimination implements FunctionPass {
+
+  private Map<Variable, List<VarRef>> uses;
+
+  @Override
+  public String getName() {
+    return "tail-recursion";
+  }
+
+  @Override
+  public boolean run(Proc proc, AnalysisManager analyses) {
+    uses = Uses.collectUses(proc);
+    List<TailCall> recursive = new ArrayList<>();
+    Class<?> accumulatorOp = null;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      TailCall tailCall = TailCall.match(block, uses);
+      if (tailCall == null || !calls(tailCall.call, proc)) {
+        continue;
+      }
+      if (tailCall.combine != null) {
+        Class<?> op = tailCall.combine.getOperator().getClass();
+        if (accumulatorOp != null && accumulatorOp != op) {
+          // only one accumulator
+          continue;
+        }
+        accumulatorOp = op;
+      }
+      recursive.add(tailCall);
+    }
+
+    boolean changed = false;
+    if (!recursive.isEmpty()) {
+      eliminate(proc, recursive);
+      uses = Uses.collectUses(proc);
+      changed = true;
+    }
+    return markTailCalls(proc) || changed;
+  }
+
+  private static boolean calls(Call call, Proc proc) {
+    return call.getFunction() instanceof ProcedureRef
+        && ((ProcedureRef) call.getFunction()).getProcedure() == proc
+        && call.getArguments().size() == proc.getParameters().size();
+  }
+
+  private void eliminate(Proc proc, List<TailCall> recursive) {
+    BasicBlockList blocks = proc.getBasicBlocks();
+    BasicBlock header = blocks.get(0);
+    BasicBlock entry = BasicBlock();
+    entry.setName("entry");
+    // allocas must not be repeated in the loop
+    for (int i = header.size() - 1; i >= 0; i--) {
+      if (header.get(i) instanceof Alloca) {
+        Instruction alloca = header.get(i);
+        header.remove(i);
+        entry.addFront(alloca);
+      }
+    }
+    entry.add(Jump(header));
+    blocks.addFront(entry);
+
+    // parameters change with every iteration
+    List<PhiNode> phis = new ArrayList<>();
+    for (Parameter p : proc.getParameters()) {
+      TemporaryVar v = TemporaryVar(p.getName());
+      Uses.replaceAll(uses.getOrDefault(p, List.of()), VarRef(v));
+      phis.add(PhiNode(v, p.getType(), PhiNodeChoiceList(PhiNodeChoice(entry, VarRef(p)))));
+    }
+
+    PhiNode accumulator = null;
+    Operator accumulatorOp = null;
+    for (TailCall tailCall : recursive) {
+      if (tailCall.combine != null) {
+        accumulatorOp = tailCall.combine.getOperator();
+        TemporaryVar acc = TemporaryVar("acc");
+        accumulator = PhiNode(acc, proc.getReturnType(), PhiNodeChoiceList(
+            PhiNodeChoice(entry, identity(accumulatorOp, proc.getReturnType()))));
+        break;
+      }
+    }
+
+    for (TailCall tailCall : recursive) {
+      BasicBlock block = tailCall.block;
+      for (int i = 0; i < phis.size(); i++) {
+        phis.get(i).getChoices().add(
+            PhiNodeChoice(block, tailCall.call.getArguments().get(i).copy()));
+      }
+      if (accumulator != null) {
+        Operand next = VarRef(accumulator.getVar());
+        if (tailCall.combine != null) {
+          TemporaryVar acc = TemporaryVar("acc");
+          block.add(indexOf(block, tailCall.ret), BinaryOperation(acc,
+              VarRef(accumulator.getVar()), accumulatorOp.copy(), tailCall.other().copy()));
+          next = VarRef(acc);
+        }
+        accumulator.getChoices().add(PhiNodeChoice(block, next));
+      }
+      Uses.removeInstruction(tailCall.call);
+      if (tailCall.combine != null) {
+        Uses.removeInstruction(tailCall.combine);
+      }
+      Uses.removeInstruction(tailCall.ret);
+      block.add(Jump(header));
+    }
+
+    if (accumulator != null) {
+      // the other returns are combined with the accumulated value
+      for (BasicBlock block : blocks) {
+        Optional<TerminatingInstruction> t = block.getTerminatingInstruction();
+        if (t.isEmpty() || !(t.get() instanceof ReturnExpr)) {
+          continue;
+        }
+        ReturnExpr ret = (ReturnExpr) t.get();
+        TemporaryVar result = TemporaryVar("result");
+        block.add(block.size() - 1, BinaryOperation(result, VarRef(accumulator.getVar()),
+            accumulatorOp.copy(), ret.getReturnValue().copy()));
+        ret.setReturnValue(VarRef(result));
+      }
+      header.addFront(accumulator);
+    }
+    for (int i = phis.size() - 1; i >= 0; i--) {
+      header.addFront(phis.get(i));
+    }
+  }
+
+  /**
+   * Returns the value, which does not change the other operand of the operator.
+   */
+  private static Operand identity(Operator op, Type type) {
+    if (type instanceof TypeBool) {
+      return ConstBool(op instanceof And);
+    } else if (op instanceof Mul) {
+      return ConstInt(1);
+    } else if (op instanceof And) {
+      return ConstInt(-1);
+    }
+    return ConstInt(0);
+  }
+
+  /**
+   * Marks the calls, whose result is returned directly.
+   * The callee can not use the stack of the caller, as only heap addresses are passed.
+   */
+  private boolean markTailCalls(Proc proc) {
+    boolean changed = false;
+    for (BasicBlock block : proc.getBasicBlocks()) {
+      TailCall tailCall = TailCall.match(block, uses);
+      if (tailCall == null || tailCall.combine != null || tailCall.call.getTail()) {
+        continue;
+      }
+      boolean passesStack = false;
+      for (Operand arg : tailCall.call.getArguments()) {
+        passesStack |= Uses.definition(arg) instanceof Alloca;
+      }
+      if (!passesStack) {
+        tailCall.call.setTail(true);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static int indexOf(BasicBlock block, Instruction instr) {
+    for (int i = 0; i < block.size(); i++) {
+      if (block.get(i) == instr) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(instr + " not found");
+  }
+
+  /**
+   * A call at the end of a block, whose result is returned,
+   * optionally after combining it with another value.
+   */
+  private static class TailCall {
+    final BasicBlock block;
+    final Call call;
+    final BinaryOperation combine;
+    final TerminatingInstruction ret;
+
+    private TailCall(BasicBlock block, Call call, BinaryOperation combine,
+                     TerminatingInstruction ret) {
+      this.block = block;
+      this.call = call;
+      this.combine = combine;
+      this.ret = ret;
+    }
+
+    Operand other() {
+      return Uses.sameValue(combine.getLeft(), VarRef(call.getVar()))
+          ? combine.getRight() : combine.getLeft();
+    }
+
+    static TailCall match(BasicBlock block, Map<Variable, List<VarRef>> uses) {
+      List<Instruction> instrs = new ArrayList<>();
+      for (Instruction instr : block) {
+        if (!(instr instanceof CommentInstr)) {
+          instrs.add(instr);
+        }
+      }
+      int n = instrs.size();
+      if (n < 2) {
+        return null;
+      }
+      Instruction last = instrs.get(n - 1);
+      Instruction prev = instrs.get(n - 2);
+      if (last instanceof ReturnVoid && prev instanceof Call) {
+        return new TailCall(block, (Call) prev, null, (ReturnVoid) last);
+      } else if (!(last instanceof ReturnExpr)) {
+        return null;
+      }
+      Operand value = ((ReturnExpr) last).getReturnValue();
+      if (prev instanceof Call && isOnlyUse(((Call) prev).getVar(), value, uses)) {
+        return new TailCall(block, (Call) prev, null, (ReturnExpr) last);
+      }
+      if (n < 3 || !(prev instanceof BinaryOperation) || !(instrs.get(n - 3) instanceof Call)) {
+        return null;
+      }
+      BinaryOperation combine = (BinaryOperation) prev;
+      Call call = (Call) instrs.get(n - 3);
+      Operator op = combine.getOperator();
+      if (!(op instanceof Add || op instanceof Mul || op instanceof And || op instanceof Or
+          || op instanceof Xor)
+          || !isOnlyUse(combine.getVar(), value, uses)) {
+        return null;
+      }
+      VarRef result = VarRef(call.getVar());
+      boolean left = Uses.sameValue(combine.getLeft(), result);
+      boolean right = Uses.sameValue(combine.getRight(), result);
+      List<VarRef> resultUses = uses.getOrDefault(call.getVar(), List.of());
+      if (left == right || resultUses.size() != 1) {
+        return null;
+      }
+      return new TailCall(block, call, combine, (ReturnExpr) last);
+    }
+
+    private static boolean isOnlyUse(TemporaryVar v, Operand value,
+                                     Map<Variable, List<VarRef>> uses) {
+      return value instanceof VarRef && ((VarRef) value).getVariable() == v
+          && uses.getOrDefault(v, List.of()).size() == 1;
+    }
+  }
+}
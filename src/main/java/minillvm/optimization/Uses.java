@@ -0,0 +1,147 @@
+package minillvm.optimization;
+
+import minillvm.ast.*;
+
+import java.util.*;
+
+/**
+ * Helper functions for finding and rewriting the uses of variables.
+ */
+public class Uses {
+
+  /**
+   * Collects all references to variables in a procedure, grouped by the referenced variable.
+   */
+  public static Map<Variable, List<VarRef>> collectUses(Proc proc) {
+    Map<Variable, List<VarRef>> result = new HashMap<>();
+    proc.accept(new Element.DefaultVisitor() {
+      @Override
+      public void visit(VarRef varRef) {
+        result.computeIfAbsent(varRef.getVariable(), v -> new ArrayList<>()).add(varRef);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns the instruction defining the value of an operand,
+   * or null for constants and parameters.
+   */
+  public static Assign definition(Operand op) {
+    if (op instanceof VarRef && ((VarRef) op).getVariable().getParent() instanceof Assign) {
+      return (Assign) ((VarRef) op).getVariable().getParent();
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether two operands certainly have the same value,
+   * i.e. they refer to the same variable or are equal integer or boolean constants.
+   */
+  public static boolean sameValue(Operand a, Operand b) {
+    if (a instanceof VarRef && b instanceof VarRef) {
+      return ((VarRef) a).getVariable() == ((VarRef) b).getVariable();
+    } else if (a instanceof ConstInt && b instanceof ConstInt) {
+      return ((ConstInt) a).getIntVal() == ((ConstInt) b).getIntVal();
+    } else if (a instanceof ConstBool && b instanceof ConstBool) {
+      return ((ConstBool) a).getBoolVal() == ((ConstBool) b).getBoolVal();
+    }
+    return false;
+  }
+
+  /**
+   * Replaces every given use by a copy of the value.
+   */
+  public static void replaceAll(List<VarRef> uses, Operand value) {
+    for (VarRef use : uses) {
+      replaceOperand(use, value.copy());
+    }
+  }
+
+  /**
+   * Replaces an operand by another operand, which must not have a parent yet.
+   */
+  public static void replaceOperand(Operand old, Operand replacement) {
+    Element parent = old.getParent();
+    if (parent instanceof OperandList) {
+      OperandList list = (OperandList) parent;
+      for (int i = 0; i < list.size(); i++) {
+        if (list.get(i) == old) {
+          list.set(i, replacement);
+          return;
+        }
+      }
+    } else if (parent instanceof Store) {
+      Store store = (Store) parent;
+      if (store.getAddress() == old) {
+        store.setAddress(replacement);
+      } else {
+        store.setValue(replacement);
+      }
+      return;
+    } else if (parent instanceof BinaryOperation) {
+      BinaryOperation binOp = (BinaryOperation) parent;
+      if (binOp.getLeft() == old) {
+        binOp.setLeft(replacement);
+      } else {
+        binOp.setRight(replacement);
+      }
+      return;
+    } else if (parent instanceof Select) {
+      Select select = (Select) parent;
+      if (select.getCondition() == old) {
+        select.setCondition(replacement);
+      } else if (select.getIfTrue() == old) {
+        select.setIfTrue(replacement);
+      } else {
+        select.setIfFalse(replacement);
+      }
+      return;
+    } else if (parent instanceof PhiNodeChoice) {
+      ((PhiNodeChoice) parent).setValue(replacement);
+      return;
+    } else if (parent instanceof Load) {
+      ((Load) parent).setAddress(replacement);
+      return;
+    } else if (parent instanceof GetElementPtr) {
+      ((GetElementPtr) parent).setBaseAddress(replacement);
+      return;
+    } else if (parent instanceof Call) {
+      ((Call) parent).setFunction(replacement);
+      return;
+    } else if (parent instanceof Bitcast) {
+      ((Bitcast) parent).setExpr(replacement);
+      return;
+    } else if (parent instanceof Branch) {
+      ((Branch) parent).setCondition(replacement);
+      return;
+    } else if (parent instanceof ReturnExpr) {
+      ((ReturnExpr) parent).setReturnValue(replacement);
+      return;
+    } else if (parent instanceof Print) {
+      ((Print) parent).setE(replacement);
+      return;
+    } else if (parent instanceof Alloc) {
+      ((Alloc) parent).setSizeInBytes(replacement);
+      return;
+    } else if (parent instanceof AllocZeroed) {
+      ((AllocZeroed) parent).setSizeInBytes(replacement);
+      return;
+    }
+    throw new RuntimeException("Cannot replace operand " + old + " in " + parent);
+  }
+
+  /**
+   * Removes an instruction from its basic block.
+   * Instructions are compared by identity, as equal instructions can occur several times.
+   */
+  public static void removeInstruction(Instruction instr) {
+    BasicBlock block = (BasicBlock) instr.getParent();
+    for (int i = 0; i < block.size(); i++) {
+      if (block.get(i) == instr) {
+        block.remove(i);
+        return;
+      }
+    }
+  }
+}
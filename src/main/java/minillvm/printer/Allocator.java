@@ -0,0 +1,21 @@
+package minillvm.printer;
+
+/**
+ * The runtime serving the heap allocations of a printed program.
+ */
+public enum Allocator {
+  /**
+   * Every allocation calls malloc or calloc of the C library.
+   */
+  LIBC,
+  /**
+   * Allocations are cut from large zeroed chunks requested with mmap by bumping a pointer.
+   * Memory is never freed, which is no change for the generated programs.
+   */
+  ARENA,
+  /**
+   * Allocations are managed by the mark-sweep collector of the runtime library nqj_gc.c.
+   * The program must be prepared with {@link minillvm.optimization.ShadowStack}.
+   */
+  GC
+}
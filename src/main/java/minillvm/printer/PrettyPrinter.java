@@ -5,9 +5,16 @@ import minillvm.analysis.ExpectedType;
 import minillvm.analysis.Typechecker;
 import minillvm.ast.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -17,9 +24,12 @@ public class PrettyPrinter implements
     Element.MatcherVoid {
 
   private final StringBuilder sb;
-  private final Map<String, String> stringConstantNames = new HashMap<>();
+  private final Map<String, Integer> errorCodes = new HashMap<>();
+  private int errorFormatCount = 0;
+  private final Map<String, Integer> branchWeights = new LinkedHashMap<>();
   private final Map<Element, SourcePosition> sourcePositions = new HashMap<>();
   private boolean includeType;
+  private Allocator allocator = Allocator.LIBC;
   private int currentLine = 1;
   private int currentColumn = 0;
 
@@ -27,6 +37,17 @@ public class PrettyPrinter implements
     this.sb = sb;
   }
 
+  /**
+   * Prints a program, which serves its allocations with the given allocator.
+   */
+  public static String programToString(Prog prog, Allocator allocator) {
+    StringBuilder sb = new StringBuilder();
+    PrettyPrinter printer = new PrettyPrinter(sb);
+    printer.allocator = allocator;
+    printer.print(prog);
+    return sb.toString();
+  }
+
   /**
    * Element -> String.
    */
@@ -246,29 +267,121 @@ public class PrettyPrinter implements
     }
 
     addBuiltins();
+
+    appendLine();
+    for (Map.Entry<String, Integer> e : branchWeights.entrySet()) {
+      appendLine("!" + e.getValue() + " = " + e.getKey());
+    }
   }
 
+  /**
+   * Prints the table of error messages. A message ending with a line number shares its
+   * printf format with the messages differing only in the line. The code of a message is
+   * {@code line * formatCount + format}, from which __nqj_fail reconstructs the message.
+   * A message, whose code does not fit into 32 unsigned bits, gets a format of its own.
+   */
   private void printStringConstants(Prog p) {
+    Set<String> messages = new LinkedHashSet<>();
     p.accept(new Element.DefaultVisitor() {
-      int messageNr = 0;
-
       public void visit(HaltWithError e) {
         super.visit(e);
-        if (stringConstantNames.containsKey(e.getMsg())) {
-          // already has constant for this string
-          return;
-        }
-        // print constant for string
-        messageNr++;
-        String constantName = ".print_message_" + messageNr;
-        byte[] bytes = e.getMsg().getBytes();
-
-        appendLine("@" + constantName + " = private unnamed_addr constant ["
-            + (bytes.length + 2)
-            + " x i8] c" + escapeString(e.getMsg() + "\n\0") + ", align 1");
-        stringConstantNames.put(e.getMsg(), constantName);
+        messages.add(e.getMsg());
       }
     });
+
+    Pattern withLine = Pattern.compile("(.* in line )(\\d+)", Pattern.DOTALL);
+    Set<String> withoutLine = new HashSet<>();
+    Map<String, Integer> formats = new LinkedHashMap<>();
+    boolean fits = false;
+    while (!fits) {
+      formats.clear();
+      Map<String, Integer> lines = new HashMap<>();
+      Map<String, String> formatOfMessage = new HashMap<>();
+      for (String msg : messages) {
+        Matcher m = withLine.matcher(msg);
+        String format;
+        if (!withoutLine.contains(msg) && m.matches() && isInt(m.group(2))) {
+          format = m.group(1).replace("%", "%%") + "%d";
+          lines.put(msg, Integer.parseInt(m.group(2)));
+        } else {
+          format = msg.replace("%", "%%");
+          lines.put(msg, 0);
+        }
+        formats.putIfAbsent(format, formats.size());
+        formatOfMessage.put(msg, format);
+      }
+
+      errorFormatCount = formats.size();
+      errorCodes.clear();
+      fits = true;
+      for (String msg : messages) {
+        long code = errorCode(lines.get(msg), formats.get(formatOfMessage.get(msg)));
+        if (code < 0) {
+          // more formats might push other codes over the limit, so all are computed again
+          withoutLine.add(msg);
+          fits = false;
+        } else {
+          // printed as a signed i32 with the same bits
+          errorCodes.put(msg, (int) code);
+        }
+      }
+    }
+    if (formats.isEmpty()) {
+      return;
+    }
+    List<String> table = new ArrayList<>();
+    for (Map.Entry<String, Integer> e : formats.entrySet()) {
+      String constantName = ".error_format_" + e.getValue();
+      int length = e.getKey().getBytes().length + 2;
+      appendLine("@" + constantName + " = private unnamed_addr constant [" + length
+          + " x i8] c" + escapeString(e.getKey() + "\n\0") + ", align 1");
+      table.add("i8* getelementptr inbounds ([" + length + " x i8], [" + length + " x i8]* @"
+          + constantName + ", i32 0, i32 0)");
+    }
+    appendLine("@.error_formats = private unnamed_addr constant [" + errorFormatCount
+        + " x i8*] [" + String.join(", ", table) + "]");
+  }
+
+  private static boolean isInt(String digits) {
+    try {
+      Integer.parseInt(digits);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns {@code line * errorFormatCount + format}, or -1 if it does not fit into 32 unsigned
+   * bits, which __nqj_fail divides by the number of formats.
+   */
+  private long errorCode(int line, int format) {
+    try {
+      long code = Math.addExact(Math.multiplyExact((long) line, errorFormatCount), format);
+      return code <= 0xFFFFFFFFL ? code : -1;
+    } catch (ArithmeticException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * The shared routine for runtime errors, which prints the message of an error code.
+   */
+  private void addFailRoutine() {
+    String table = "[" + errorFormatCount + " x i8*]";
+    appendLine();
+    appendLine("define void @__nqj_fail(i32 %code) noreturn cold noinline {");
+    appendLine("    call void @nqj_flush()");
+    appendLine("    %index = urem i32 %code, " + errorFormatCount);
+    appendLine("    %line = udiv i32 %code, " + errorFormatCount);
+    appendLine("    %slot = getelementptr " + table + ", " + table
+        + "* @.error_formats, i32 0, i32 %index");
+    appendLine("    %format = load i8*, i8** %slot");
+    // formats without a line ignore the extra argument
+    appendLine("    %printed = call i32 (i8*, ...) @printf(i8* %format, i32 %line)");
+    appendLine("    call void @exit(i32 222)");
+    appendLine("    unreachable");
+    appendLine("}");
   }
 
   /**
@@ -278,19 +391,189 @@ public class PrettyPrinter implements
     appendLine();
     appendLine("declare noalias i8* @malloc(i32)");
     appendLine();
+    appendLine("declare noalias i8* @calloc(i32, i32)");
+    appendLine();
     appendLine("declare i32 @printf(i8*, ...)");
     appendLine();
     appendLine("declare void @exit(i32)");
     appendLine();
-    appendLine("@.printstr = private unnamed_addr constant [4 x i8] c\"%d\\0A\\00\", align 1");
+    addBufferedOutput();
+    if (errorFormatCount > 0) {
+      addFailRoutine();
+    }
+    if (allocator == Allocator.ARENA) {
+      addArenaAllocator();
+    } else if (allocator == Allocator.GC) {
+      appendLine();
+      appendLine("declare i8* @nqj_gc_alloc(i32)");
+    }
+  }
+
+  /**
+   * Printed integers are formatted into a buffer, which is written to stdout when it is full,
+   * at exit and before runtime errors, whose messages are printed with printf.
+   */
+  private void addBufferedOutput() {
+    String buffer = "[65536 x i8], [65536 x i8]* @.nqj_out, i32 0";
+    appendLine();
+    appendLine("declare i64 @write(i32, i8*, i64)");
+    appendLine();
+    appendLine("declare i32 @atexit(void ()*)");
+    appendLine();
+    appendLine("@.nqj_out = internal global [65536 x i8] zeroinitializer");
+    appendLine("@.nqj_out_len = internal global i32 0");
+    appendLine("@llvm.global_ctors = appending global [1 x { i32, void ()*, i8* }] "
+        + "[{ i32, void ()*, i8* } { i32 65535, void ()* @nqj_init_output, i8* null }]");
+    appendLine();
+    appendLine("define internal void @nqj_init_output() {");
+    appendLine("    %registered = call i32 @atexit(void ()* @nqj_flush)");
+    appendLine("    ret void");
+    appendLine("}");
+    appendLine();
+    appendLine("define void @nqj_flush() {");
+    appendLine("entry:");
+    appendLine("    %len = load i32, i32* @.nqj_out_len");
+    appendLine("    store i32 0, i32* @.nqj_out_len");
+    appendLine("    br label %loop");
+    appendLine("loop:");
+    appendLine("    %offset = phi i32 [ 0, %entry ], [ %next, %advance ]");
+    appendLine("    %more = icmp slt i32 %offset, %len");
+    appendLine("    br i1 %more, label %write, label %done");
+    appendLine("write:");
+    appendLine("    %start = getelementptr " + buffer + ", i32 %offset");
+    appendLine("    %rest = sub i32 %len, %offset");
+    appendLine("    %rest64 = sext i32 %rest to i64");
+    appendLine("    %written = call i64 @write(i32 1, i8* %start, i64 %rest64)");
+    appendLine("    %failed = icmp slt i64 %written, 1");
+    appendLine("    br i1 %failed, label %done, label %advance");
+    appendLine("advance:");
+    appendLine("    %written32 = trunc i64 %written to i32");
+    appendLine("    %next = add i32 %offset, %written32");
+    appendLine("    br label %loop");
+    appendLine("done:");
+    appendLine("    ret void");
+    appendLine("}");
+    appendLine();
+    // same output as printf("%d\n"), the digits are produced backwards
     appendLine("define void @print(i32 %i) {");
-    appendLine("    %temp = call i32 (i8*, ...) "
-        + "@printf(i8* getelementptr inbounds "
-        + "([4 x i8], [4 x i8]* @.printstr, i32 0, i32 0), i32 %i)");
+    appendLine("entry:");
+    appendLine("    %digits = alloca [10 x i8]");
+    appendLine("    %len = load i32, i32* @.nqj_out_len");
+    appendLine("    %full = icmp sgt i32 %len, 65524");
+    appendLine("    br i1 %full, label %flush, label %format");
+    appendLine("flush:");
+    appendLine("    call void @nqj_flush()");
+    appendLine("    br label %format");
+    appendLine("format:");
+    appendLine("    %negative = icmp slt i32 %i, 0");
+    appendLine("    %negated = sub i32 0, %i");
+    appendLine("    %value = select i1 %negative, i32 %negated, i32 %i");
+    appendLine("    br label %digit");
+    appendLine("digit:");
+    appendLine("    %n = phi i32 [ %value, %format ], [ %quotient, %digit ]");
+    appendLine("    %count = phi i32 [ 0, %format ], [ %nextCount, %digit ]");
+    // unsigned, so the negated minimum integer works as well
+    appendLine("    %quotient = udiv i32 %n, 10");
+    appendLine("    %remainder = urem i32 %n, 10");
+    appendLine("    %remainder8 = trunc i32 %remainder to i8");
+    appendLine("    %char = add i8 %remainder8, 48");
+    appendLine("    %slot = getelementptr [10 x i8], [10 x i8]* %digits, i32 0, i32 %count");
+    appendLine("    store i8 %char, i8* %slot");
+    appendLine("    %nextCount = add i32 %count, 1");
+    appendLine("    %moreDigits = icmp ne i32 %quotient, 0");
+    appendLine("    br i1 %moreDigits, label %digit, label %sign");
+    appendLine("sign:");
+    appendLine("    %start = load i32, i32* @.nqj_out_len");
+    appendLine("    br i1 %negative, label %minus, label %copyStart");
+    appendLine("minus:");
+    appendLine("    %minusAddr = getelementptr " + buffer + ", i32 %start");
+    appendLine("    store i8 45, i8* %minusAddr");
+    appendLine("    %afterMinus = add i32 %start, 1");
+    appendLine("    br label %copyStart");
+    appendLine("copyStart:");
+    appendLine("    %begin = phi i32 [ %start, %sign ], [ %afterMinus, %minus ]");
+    appendLine("    br label %copy");
+    appendLine("copy:");
+    appendLine("    %remaining = phi i32 [ %nextCount, %copyStart ], [ %left, %copy ]");
+    appendLine("    %pos = phi i32 [ %begin, %copyStart ], [ %nextPos, %copy ]");
+    appendLine("    %left = sub i32 %remaining, 1");
+    appendLine("    %from = getelementptr [10 x i8], [10 x i8]* %digits, i32 0, i32 %left");
+    appendLine("    %c = load i8, i8* %from");
+    appendLine("    %to = getelementptr " + buffer + ", i32 %pos");
+    appendLine("    store i8 %c, i8* %to");
+    appendLine("    %nextPos = add i32 %pos, 1");
+    appendLine("    %moreChars = icmp ne i32 %left, 0");
+    appendLine("    br i1 %moreChars, label %copy, label %newline");
+    appendLine("newline:");
+    appendLine("    %newlineAddr = getelementptr " + buffer + ", i32 %nextPos");
+    appendLine("    store i8 10, i8* %newlineAddr");
+    appendLine("    %end = add i32 %nextPos, 1");
+    appendLine("    store i32 %end, i32* @.nqj_out_len");
     appendLine("    ret void");
     appendLine("}");
   }
 
+  /**
+   * The arena allocator bumps a pointer through the current chunk. Fresh chunks from mmap
+   * are zeroed and memory is never reused, so it serves zeroed allocations as well.
+   * The fast path is marked to be always inlined, the refill is kept out of line.
+   */
+  private void addArenaAllocator() {
+    appendLine();
+    appendLine("declare i8* @mmap(i8*, i64, i32, i32, i32, i64)");
+    appendLine();
+    appendLine("@nqj_arena_next = internal global i8* null");
+    appendLine("@nqj_arena_end = internal global i8* null");
+    appendLine("@.nqj_out_of_memory = private unnamed_addr constant [15 x i8] "
+        + "c\"Out of memory\\0A\\00\", align 1");
+    appendLine();
+    appendLine("define internal i8* @nqj_alloc(i32 %size) alwaysinline {");
+    appendLine("entry:");
+    // keep every allocation 8 byte aligned
+    appendLine("    %padded = add i32 %size, 7");
+    appendLine("    %aligned = and i32 %padded, -8");
+    appendLine("    %next = load i8*, i8** @nqj_arena_next");
+    appendLine("    %newNext = getelementptr i8, i8* %next, i32 %aligned");
+    appendLine("    %end = load i8*, i8** @nqj_arena_end");
+    appendLine("    %fits = icmp ule i8* %newNext, %end");
+    appendLine("    br i1 %fits, label %bump, label %refill");
+    appendLine("bump:");
+    appendLine("    store i8* %newNext, i8** @nqj_arena_next");
+    appendLine("    ret i8* %next");
+    appendLine("refill:");
+    appendLine("    %chunk = call i8* @nqj_arena_refill(i32 %aligned)");
+    appendLine("    ret i8* %chunk");
+    appendLine("}");
+    appendLine();
+    // allocations larger than a chunk get their own mapping and keep the current chunk
+    appendLine("define internal i8* @nqj_arena_refill(i32 %size) noinline {");
+    appendLine("entry:");
+    appendLine("    %large = icmp ugt i32 %size, 16777216");
+    appendLine("    %chunkSize = select i1 %large, i32 %size, i32 16777216");
+    appendLine("    %length = zext i32 %chunkSize to i64");
+    // PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS
+    appendLine("    %chunk = call i8* @mmap(i8* null, i64 %length, i32 3, i32 34, i32 -1, i64 0)");
+    appendLine("    %failed = icmp eq i8* %chunk, inttoptr (i64 -1 to i8*)");
+    appendLine("    br i1 %failed, label %outOfMemory, label %mapped");
+    appendLine("outOfMemory:");
+    appendLine("    call void @nqj_flush()");
+    appendLine("    call i32 (i8*, ...) @printf(i8* getelementptr inbounds "
+        + "([15 x i8], [15 x i8]* @.nqj_out_of_memory, i32 0, i32 0))");
+    appendLine("    call void @exit(i32 222)");
+    appendLine("    unreachable");
+    appendLine("mapped:");
+    appendLine("    br i1 %large, label %done, label %newChunk");
+    appendLine("newChunk:");
+    appendLine("    %next = getelementptr i8, i8* %chunk, i32 %size");
+    appendLine("    store i8* %next, i8** @nqj_arena_next");
+    appendLine("    %end = getelementptr i8, i8* %chunk, i32 %chunkSize");
+    appendLine("    store i8* %end, i8** @nqj_arena_end");
+    appendLine("    br label %done");
+    appendLine("done:");
+    appendLine("    ret i8* %chunk");
+    appendLine("}");
+  }
+
   @Override
   public void case_Sizeof(Sizeof e) {
     if (includeType) {
@@ -400,6 +683,11 @@ public class PrettyPrinter implements
     printWithType(s.getCondition());
     append(", label %" + getName(s.getIfTrueLabel()));
     append(", label %" + getName(s.getIfFalseLabel()));
+    if (s.getTrueWeight() > 0 || s.getFalseWeight() > 0) {
+      String weights = "!{!\"branch_weights\", i32 " + s.getTrueWeight()
+          + ", i32 " + s.getFalseWeight() + "}";
+      append(", !prof !" + branchWeights.computeIfAbsent(weights, w -> branchWeights.size()));
+    }
   }
 
   @Override
@@ -451,6 +739,16 @@ public class PrettyPrinter implements
   }
 
 
+  @Override
+  public void case_Select(Select s) {
+    append(s.getVar() + " = select ");
+    printWithType(s.getCondition());
+    append(", ");
+    printWithType(s.getIfTrue());
+    append(", ");
+    printWithType(s.getIfFalse());
+  }
+
   @Override
   public void case_Load(Load s) {
     Type t;
@@ -468,18 +766,34 @@ public class PrettyPrinter implements
   public void case_HaltWithError(HaltWithError s) {
     appendLine("; ERROR: " + s.getMsg()
         .replaceAll("[\r\n]", " | ") + "");
-    appendLine("    call i32 (i8*, ...) @printf(i8* getelementptr inbounds (["
-        + (s.getMsg().getBytes().length + 2) + " x i8], ["
-        + (s.getMsg().getBytes().length + 2) + " x i8]* @"
-        + stringConstantNames.get(s.getMsg()) + ", i32 0, i32 0))");
-
-    appendLine("    call void @exit(i32 222)");
+    appendLine("    call void @__nqj_fail(i32 " + errorCodes.getOrDefault(s.getMsg(), 0) + ")");
     appendLine("    unreachable");
   }
 
   @Override
   public void case_Alloc(Alloc s) {
-    append(s.getVar() + " = call i8* @malloc(");
+    if (allocator == Allocator.ARENA) {
+      append(s.getVar() + " = call i8* @nqj_alloc(");
+    } else if (allocator == Allocator.GC) {
+      append(s.getVar() + " = call i8* @nqj_gc_alloc(");
+    } else {
+      append(s.getVar() + " = call i8* @malloc(");
+    }
+    printWithType(s.getSizeInBytes());
+    append(")");
+  }
+
+  @Override
+  public void case_AllocZeroed(AllocZeroed s) {
+    if (allocator == Allocator.ARENA) {
+      // arena memory is zeroed when mapped
+      append(s.getVar() + " = call i8* @nqj_alloc(");
+    } else if (allocator == Allocator.GC) {
+      // collected memory is zeroed as well
+      append(s.getVar() + " = call i8* @nqj_gc_alloc(");
+    } else {
+      append(s.getVar() + " = call i8* @calloc(i32 1, ");
+    }
     printWithType(s.getSizeInBytes());
     append(")");
   }
@@ -511,6 +825,9 @@ public class PrettyPrinter implements
 
 
     append(s.getVar() + " = ");
+    if (s.getTail()) {
+      append("tail ");
+    }
     append("call " + t + " ");
 
     print(s.getFunction());
@@ -634,6 +951,11 @@ public class PrettyPrinter implements
     append("slt");
   }
 
+  @Override
+  public void case_Ult(Ult ult) {
+    append("ult");
+  }
+
   @Override
   public void case_And(And and) {
     append("and");
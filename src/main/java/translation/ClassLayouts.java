@@ -0,0 +1,167 @@
+package translation;
+
+import notquitejava.ast.NQJClassDecl;
+import notquitejava.ast.NQJFunctionDecl;
+import notquitejava.ast.NQJProgram;
+import notquitejava.ast.NQJVarDecl;
+
+import java.util.*;
+
+/**
+ * Layout pass, computes the object struct and virtual table layout of every class once.
+ * The layout of a superclass is a prefix of the layout of its subclasses,
+ * so a field or method declaration has the same index in every class inheriting it.
+ */
+public class ClassLayouts {
+
+  private static final NQJVarDecl[] NO_FIELDS = new NQJVarDecl[0];
+  private static final NQJFunctionDecl[] NO_METHODS = new NQJFunctionDecl[0];
+
+  private final Map<String, NQJClassDecl> classByName = new HashMap<>();
+  private final Map<NQJFunctionDecl, NQJClassDecl> declaringClass = new HashMap<>();
+  private final Map<NQJClassDecl, NQJVarDecl[]> fields = new HashMap<>();
+  private final Map<NQJClassDecl, NQJFunctionDecl[]> vtables = new HashMap<>();
+  private final Map<NQJVarDecl, Integer> fieldIndex = new HashMap<>();
+  private final Map<NQJFunctionDecl, Integer> methodSlot = new HashMap<>();
+  private final Set<NQJFunctionDecl> overridden = new HashSet<>();
+
+  /**
+   * Computes the layouts of all classes of the given program.
+   */
+  public ClassLayouts(NQJProgram prog) {
+    for (NQJClassDecl c : prog.getClassDecls()) {
+      classByName.put(c.getName(), c);
+      for (NQJFunctionDecl f : c.getMethods()) {
+        declaringClass.put(f, c);
+      }
+    }
+
+    for (NQJClassDecl c : prog.getClassDecls()) {
+      computeLayout(c);
+    }
+
+    // class hierarchy analysis: a slot of a superclass with another implementation
+    for (NQJClassDecl c : prog.getClassDecls()) {
+      NQJFunctionDecl[] methods = vtables.get(c);
+      for (NQJClassDecl s = c.getDirectSuperClass(); s != null; s = s.getDirectSuperClass()) {
+        NQJFunctionDecl[] superMethods = vtables.get(s);
+        for (int slot = 0; slot < superMethods.length; slot++) {
+          if (superMethods[slot] != methods[slot]) {
+            overridden.add(superMethods[slot]);
+          }
+        }
+      }
+    }
+  }
+
+  private void computeLayout(NQJClassDecl c) {
+    if (fields.containsKey(c)) {
+      return;
+    }
+
+    // the layout of the superclass is needed first, as it is the prefix of this layout
+    NQJClassDecl superClass = c.getDirectSuperClass();
+    NQJVarDecl[] superFields = NO_FIELDS;
+    NQJFunctionDecl[] superMethods = NO_METHODS;
+    if (superClass != null) {
+      computeLayout(superClass);
+      superFields = fields.get(superClass);
+      superMethods = vtables.get(superClass);
+    }
+
+    // a shadowing field gets a new slot after the inherited ones
+    NQJVarDecl[] classFields = Arrays.copyOf(superFields, superFields.length + c.getFields().size());
+    int i = superFields.length;
+    for (NQJVarDecl v : c.getFields()) {
+      fieldIndex.put(v, i);
+      classFields[i++] = v;
+    }
+
+    // an overriding method takes the slot of the overridden one
+    Map<String, Integer> slotByName = new HashMap<>();
+    for (int slot = 0; slot < superMethods.length; slot++) {
+      slotByName.put(superMethods[slot].getName(), slot);
+    }
+    List<NQJFunctionDecl> classMethods = new ArrayList<>(Arrays.asList(superMethods));
+    for (NQJFunctionDecl f : c.getMethods()) {
+      Integer slot = slotByName.get(f.getName());
+      if (slot == null) {
+        slot = classMethods.size();
+        classMethods.add(f);
+      } else {
+        classMethods.set(slot, f);
+      }
+      methodSlot.put(f, slot);
+    }
+
+    fields.put(c, classFields);
+    vtables.put(c, classMethods.toArray(NO_METHODS));
+  }
+
+  /**
+   * Returns the class with the given name.
+   */
+  public NQJClassDecl getClassDeclByName(String name) {
+    NQJClassDecl c = classByName.get(name);
+    if (c == null) {
+      throw new RuntimeException("Class " + name + " is not defined");
+    }
+    return c;
+  }
+
+  /**
+   * Returns the class declaring the given method.
+   */
+  public NQJClassDecl getDeclaringClass(NQJFunctionDecl f) {
+    NQJClassDecl c = declaringClass.get(f);
+    if (c == null) {
+      throw new RuntimeException("Function " + f.getName() + " is not defined");
+    }
+    return c;
+  }
+
+  /**
+   * Returns all fields of a class including inherited ones, in struct order.
+   * The vtable reference at struct position 0 is not included.
+   */
+  public List<NQJVarDecl> getFields(NQJClassDecl c) {
+    return Collections.unmodifiableList(Arrays.asList(fields.get(c)));
+  }
+
+  /**
+   * Returns the implementation of each vtable slot of a class.
+   */
+  public List<NQJFunctionDecl> getVirtualTable(NQJClassDecl c) {
+    return Collections.unmodifiableList(Arrays.asList(vtables.get(c)));
+  }
+
+  /**
+   * Returns the index of a field in the fields of every class inheriting it.
+   */
+  public int getFieldIndex(NQJVarDecl field) {
+    Integer index = fieldIndex.get(field);
+    if (index == null) {
+      throw new RuntimeException("Field " + field.getName() + " is not defined");
+    }
+    return index;
+  }
+
+  /**
+   * Checks whether a subclass of the declaring class of a method overrides the method.
+   * Calls of methods, which are not overridden, always reach the method itself.
+   */
+  public boolean isOverridden(NQJFunctionDecl method) {
+    return overridden.contains(method);
+  }
+
+  /**
+   * Returns the vtable slot of a method in every class inheriting it.
+   */
+  public int getMethodSlot(NQJFunctionDecl method) {
+    Integer slot = methodSlot.get(method);
+    if (slot == null) {
+      throw new RuntimeException("Method " + method.getName() + " does not exist");
+    }
+    return slot;
+  }
+}
@@ -23,26 +23,14 @@ public class ExprLValue implements NQJExprL.Matcher<Operand> {
     Operand index = tr.exprRvalue(e.getArrayIndex());
 
     Operand len = tr.getArrayLen(arrayAddr);
-    TemporaryVar smallerZero = Ast.TemporaryVar("smallerZero");
-    TemporaryVar lenMinusOne = Ast.TemporaryVar("lenMinusOne");
-    TemporaryVar greaterEqualLen = Ast.TemporaryVar("greaterEqualLen");
-    TemporaryVar outOfBoundsV = Ast.TemporaryVar("outOfBounds");
+    TemporaryVar inBounds = Ast.TemporaryVar("inBounds");
     final BasicBlock outOfBounds = tr.newBasicBlock("outOfBounds");
     final BasicBlock indexInRange = tr.newBasicBlock("indexInRange");
 
-
-    // smallerZero = index < 0
-    tr.addInstruction(BinaryOperation(smallerZero, index, Slt(), Ast.ConstInt(0)));
-    // lenMinusOne = length - 1
-    tr.addInstruction(BinaryOperation(lenMinusOne, len, Sub(), Ast.ConstInt(1)));
-    // greaterEqualLen = lenMinusOne < index
-    tr.addInstruction(BinaryOperation(greaterEqualLen,
-        VarRef(lenMinusOne), Slt(), index.copy()));
-    // outOfBoundsV = smallerZero || greaterEqualLen
-    tr.addInstruction(BinaryOperation(outOfBoundsV,
-        VarRef(smallerZero), Or(), VarRef(greaterEqualLen)));
-
-    tr.getCurrentBlock().add(Ast.Branch(VarRef(outOfBoundsV), outOfBounds, indexInRange));
+    // a negative index is a large unsigned number, so one comparison checks both bounds
+    tr.addInstruction(BinaryOperation(inBounds, index, Ult(), len));
+    tr.getCurrentBlock().add(
+        Translator.checkBranch(VarRef(inBounds), indexInRange, outOfBounds, outOfBounds));
 
     tr.addBasicBlock(outOfBounds);
     outOfBounds.add(Ast.HaltWithError("Index out of bounds error in line " + tr.sourceLine(e)));
@@ -61,7 +49,7 @@ public class ExprLValue implements NQJExprL.Matcher<Operand> {
   @Override
   public Operand case_FieldAccess(NQJFieldAccess e) {
     if (e.getReceiver() instanceof NQJExprThis) {
-      int index = tr.getIndexOfFieldByName(tr.getCurrentClass().getName(), e.getFieldName());
+      int index = tr.getFieldIndex(e.getVariableDeclaration());
       TemporaryVar fieldAddr = TemporaryVar(e.getFieldName() + "_addr");
       
       // index does not take into account vtable reference at position 0
@@ -74,13 +62,12 @@ public class ExprLValue implements NQJExprL.Matcher<Operand> {
       NQJVarDecl declByName = tr.getDeclByName(receiver.getVarName());
 
       if (declByName != null) {
-        String clsName = ((NQJTypeClass) declByName.getType()).getName();
-        int index = tr.getIndexOfFieldByName(clsName, e.getFieldName());
+        int index = tr.getFieldIndex(e.getVariableDeclaration());
 
         // get the LHS of field access (object struct)
-        TemporaryVar var = tr.getLocalVarLocation(declByName);
+        Operand var = tr.getVarAddress(declByName);
         TemporaryVar load = TemporaryVar(e.getFieldName() + "_load");
-        tr.addInstruction(Load(load, VarRef(var)));
+        tr.addInstruction(Load(load, var));
 
         TemporaryVar fieldAddr = TemporaryVar(e.getFieldName() + "_addr");
         // index does not take into account vtable reference at position 0
@@ -92,7 +79,7 @@ public class ExprLValue implements NQJExprL.Matcher<Operand> {
       NQJNewObject receiver = (NQJNewObject) e.getReceiver();
       NQJClassDecl c = tr.getClassDeclByName(receiver.getClassName());
       Operand proc = tr.getNewObjectFunc(c);
-      int index = tr.getIndexOfFieldByName(c.getName(), e.getFieldName());
+      int index = tr.getFieldIndex(e.getVariableDeclaration());
 
       TemporaryVar res = TemporaryVar("newObject");
       tr.addInstruction(Ast.Call(res, proc, OperandList()));
@@ -109,8 +96,8 @@ public class ExprLValue implements NQJExprL.Matcher<Operand> {
   @Override
   public Operand case_VarUse(NQJVarUse e) {
     NQJVarDecl varDecl = e.getVariableDeclaration();
-    // local TemporaryVar
-    return VarRef(tr.getLocalVarLocation(varDecl));
+    // local TemporaryVar or field of this
+    return tr.getVarAddress(varDecl);
   }
 
 }
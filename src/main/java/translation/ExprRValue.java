@@ -16,6 +16,27 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
     this.tr = translator;
   }
 
+  /**
+   * Checks whether evaluating the expression can neither fail nor have side effects,
+   * so that it may be evaluated even if its value is not needed.
+   */
+  static boolean isSideEffectFree(NQJExpr e) {
+    if (e instanceof NQJBoolConst || e instanceof NQJNumber
+        || e instanceof NQJExprNull || e instanceof NQJExprThis) {
+      return true;
+    } else if (e instanceof NQJRead) {
+      // a local variable or a field of this, other addresses need null or bounds checks
+      return ((NQJRead) e).getAddress() instanceof NQJVarUse;
+    } else if (e instanceof NQJExprUnary) {
+      return isSideEffectFree(((NQJExprUnary) e).getExpr());
+    } else if (e instanceof NQJExprBinary) {
+      NQJExprBinary binary = (NQJExprBinary) e;
+      return !(binary.getOperator() instanceof NQJDiv)
+          && isSideEffectFree(binary.getLeft()) && isSideEffectFree(binary.getRight());
+    }
+    return false;
+  }
+
   @Override
   public Operand case_ExprUnary(NQJExprUnary e) {
     Operand expr = tr.exprRvalue(e.getExpr());
@@ -62,6 +83,13 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
     return e.getOperator().match(new NQJOperator.Matcher<>() {
       @Override
       public Operand case_And(NQJAnd and) {
+        if (isSideEffectFree(e.getRight())) {
+          // evaluating the right operand anyway is cheaper than a branch
+          Operand right = tr.exprRvalue(e.getRight());
+          TemporaryVar andRes = TemporaryVar("andRes");
+          tr.addInstruction(Ast.Select(andRes, left, right, ConstBool(false)));
+          return VarRef(andRes);
+        }
         BasicBlock andRight = tr.newBasicBlock("and_first_true");
         BasicBlock andEnd = tr.newBasicBlock("and_end");
         TemporaryVar andResVar = TemporaryVar("andResVar");
@@ -106,7 +134,7 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
         BasicBlock ifZero = tr.newBasicBlock("ifZero");
         BasicBlock notZero = tr.newBasicBlock("notZero");
 
-        tr.addInstruction(Ast.Branch(VarRef(isZero), ifZero, notZero));
+        tr.addInstruction(Translator.checkBranch(VarRef(isZero), ifZero, notZero, ifZero));
 
         tr.addBasicBlock(ifZero);
         ifZero.add(Ast.HaltWithError("Division by zero in line " + tr.sourceLine(e)));
@@ -227,7 +255,9 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
       Parameter thisParameter = tr.getThisParameter();
 
       OperandList args = tr.getArgumentsFromCall(e);
-      args.addFront(VarRef(thisParameter));
+      // an inherited method expects a pointer to its declaring class
+      args.addFront(tr.addCastIfNecessary(VarRef(thisParameter),
+          proc.getParameters().get(0).getType()));
 
       TemporaryVar result = TemporaryVar(e.getMethodName() + "_result");
       tr.addInstruction(Ast.Call(result, ProcedureRef(proc), args));
@@ -238,9 +268,9 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
       NQJVarDecl declByName = tr.getDeclByName(varName);
 
       // load the object that made the call
-      TemporaryVar var = tr.getLocalVarLocation(declByName);
+      Operand var = tr.getVarAddress(declByName);
       TemporaryVar ptr = TemporaryVar("objectPtr");
-      tr.addInstruction(Load(ptr, VarRef(var)));
+      tr.addInstruction(Load(ptr, var));
 
       addr = VarRef(ptr);
       f = e.getFunctionDeclaration();
@@ -256,10 +286,23 @@ public class ExprRValue implements NQJExpr.Matcher<Operand> {
     }
 
     OperandList args = tr.getArgumentsFromCall(e);
-    args.addFront(addr.copy());
 
     NQJClassDecl c = tr.getClassDeclByFunctionDecl(f);
-    int index = tr.getIndexOfMethodByName(c.getName(), f.getName());
+    int index = tr.getMethodSlot(f);
+
+    // an inherited method expects a pointer to its declaring class
+    args.addFront(tr.addCastIfNecessary(addr.copy(), tr.getObjectPointerType(c)));
+
+    // direct and virtual calls report a null receiver the same way
+    tr.addNullcheck(addr, "Nullpointer exception when calling method " + e.getMethodName()
+        + " in line " + tr.sourceLine(e));
+
+    if (!tr.isOverridden(f)) {
+      // no subclass overrides the method, so it can be called directly
+      TemporaryVar result = TemporaryVar(e.getMethodName() + "_result");
+      tr.addInstruction(Ast.Call(result, ProcedureRef(tr.getProcByFuncDecl(f)), args));
+      return VarRef(result);
+    }
 
     // in the following the corresponding proc is called
     // vt is used to locate it
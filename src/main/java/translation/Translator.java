@@ -1,5 +1,6 @@
 package translation;
 
+import minillvm.analysis.TypeInterner;
 import minillvm.ast.BasicBlock;
 import minillvm.ast.Global;
 import minillvm.ast.Parameter;
@@ -32,14 +33,21 @@ import static minillvm.ast.Ast.*;
  */
 public class Translator {
 
+  // branch weights of runtime checks, the error path is cold
+  private static final int LIKELY_WEIGHT = 2000;
+  private static final int UNLIKELY_WEIGHT = 1;
+
   private final StmtTranslator stmtTranslator = new StmtTranslator(this);
   private final ExprLValue exprLValue = new ExprLValue(this);
   private final ExprRValue exprRValue = new ExprRValue(this);
   private final Map<NQJFunctionDecl, Proc> functionImpl = new HashMap<>();
   private final Prog prog = Prog(TypeStructList(), GlobalList(), ProcList());
   private final NQJProgram javaProg;
+  private final ClassLayouts layouts;
   private final Map<NQJVarDecl, TemporaryVar> localVarLocation = new HashMap<>();
   private final Map<NQJType, Type> translatedType = new HashMap<>();
+  // array structs and procs are keyed by interned types, so there is one per component type
+  private final TypeInterner types = new TypeInterner();
   private final Map<Type, TypeStruct> arrayStruct = new HashMap<>();
   private final Map<Type, Proc> newArrayFuncForType = new HashMap<>();
 
@@ -52,10 +60,10 @@ public class Translator {
   // mutable state
   private Proc currentProcedure;
   private BasicBlock currentBlock;
-  private NQJClassDecl currentClass;
 
   public Translator(NQJProgram javaProg) {
     this.javaProg = javaProg;
+    this.layouts = new ClassLayouts(javaProg);
   }
 
   /**
@@ -67,6 +75,9 @@ public class Translator {
     createVirtualTables();
     createObjectStructs();
 
+    // struct layouts and method procs of all classes must exist before any body is translated
+    initClasses();
+
     // translate functions except main
     // has only access to functions
     translateFunctions();
@@ -78,14 +89,30 @@ public class Translator {
     // has access to functions
     translateMainFunction();
 
+    // vtables reference procs of superclasses, so they are created after all classes
+    createVirtualTableGlobals();
+
     finishNewObjectProcs();
     finishNewArrayProcs();
 
     return prog;
   }
 
-  TemporaryVar getLocalVarLocation(NQJVarDecl varDecl) {
-    return localVarLocation.get(varDecl);
+  /**
+   * Returns the address of a local variable or of a field of the current object.
+   * Field addresses are computed on demand, so methods not using fields pay nothing for them.
+   */
+  Operand getVarAddress(NQJVarDecl varDecl) {
+    TemporaryVar local = localVarLocation.get(varDecl);
+    if (local != null) {
+      return VarRef(local);
+    }
+
+    TemporaryVar fieldAddr = TemporaryVar(varDecl.getName() + "_addr");
+    // index does not take into account vtable reference at position 0
+    addInstruction(GetElementPtr(fieldAddr, VarRef(getThisParameter()),
+        OperandList(ConstInt(0), ConstInt(getFieldIndex(varDecl) + 1))));
+    return VarRef(fieldAddr);
   }
 
   NQJVarDecl getDeclByName(String name) {
@@ -107,9 +134,6 @@ public class Translator {
   private void finishNewObjectProc(NQJClassDecl ct) {
     // get the appropriate proc for the type
     final Proc newObjectFunc = newObjectFuncForType.get(ct);
-    // i = 0 is reserved to vtable reference
-    int i = 1;
-
     addProcedure(newObjectFunc);
     setCurrentProc(newObjectFunc);
 
@@ -117,9 +141,9 @@ public class Translator {
     addBasicBlock(init);
     setCurrentBlock(init);
 
-    // allocate space for object
+    // allocate space for object, all fields start as 0, false or null
     TemporaryVar mallocResult = TemporaryVar("mallocRes");
-    addInstruction(Alloc(mallocResult, Sizeof(getObjectStruct(ct))));
+    addInstruction(AllocZeroed(mallocResult, Sizeof(getObjectStruct(ct))));
     TemporaryVar newObject = TemporaryVar(ct.getName() + "_object");
     addInstruction(Bitcast(newObject, getObjectPointerType(ct), VarRef(mallocResult)));
 
@@ -130,26 +154,6 @@ public class Translator {
         VarRef(newObject), OperandList(ConstInt(0), ConstInt(0))));
     addInstruction(Store(VarRef(vtableAddr), GlobalRef(virtualTableGlobal.get(ct))));
 
-    // iterate through every field and store it
-    for (NQJVarDecl v : getFieldsHierarchy(ct)) {
-      TemporaryVar iAddr = TemporaryVar("i" + i);
-      addInstruction(GetElementPtr(iAddr,
-          VarRef(newObject), OperandList(ConstInt(0), ConstInt(i))));
-
-      i++;
-      Type type = translateType(v.getType());
-
-      if (type instanceof TypeInt) {
-        addInstruction(Store(VarRef(iAddr), ConstInt(0)));
-      } else if (type instanceof TypeBool) {
-        addInstruction(Store(VarRef(iAddr), ConstBool(false)));
-      } else {
-        // at this point nullpointer is sufficient for both arrays and objects
-        addInstruction(Store(VarRef(iAddr), Nullpointer()));
-      }
-
-    }
-
     addInstruction(ReturnExpr(VarRef(newObject)));
   }
 
@@ -168,7 +172,7 @@ public class Translator {
         VarRef(size), Slt(), ConstInt(0)));
     BasicBlock negativeSize = newBasicBlock("negativeSize");
     BasicBlock goodSize = newBasicBlock("goodSize");
-    currentBlock.add(Branch(VarRef(sizeLessThanZero), negativeSize, goodSize));
+    currentBlock.add(checkBranch(VarRef(sizeLessThanZero), negativeSize, goodSize, negativeSize));
 
     addBasicBlock(negativeSize);
     negativeSize.add(HaltWithError("Array Size must be positive"));
@@ -186,8 +190,9 @@ public class Translator {
     addInstruction(BinaryOperation(arraySizeWithLen,
         VarRef(arraySizeInBytes), Add(), ConstInt(4)));
 
+    // the elements start as 0, false or null
     TemporaryVar mallocResult = TemporaryVar("mallocRes");
-    addInstruction(Alloc(mallocResult, VarRef(arraySizeWithLen)));
+    addInstruction(AllocZeroed(mallocResult, VarRef(arraySizeWithLen)));
     TemporaryVar newArray = TemporaryVar("newArray");
     addInstruction(Bitcast(newArray,
         getArrayPointerType(componentType), VarRef(mallocResult)));
@@ -198,52 +203,31 @@ public class Translator {
         VarRef(newArray), OperandList(ConstInt(0), ConstInt(0))));
     addInstruction(Store(VarRef(sizeAddr), VarRef(size)));
 
-    // initialize Array with zeros:
-    final BasicBlock loopStart = newBasicBlock("loopStart");
-    final BasicBlock loopBody = newBasicBlock("loopBody");
-    final BasicBlock loopEnd = newBasicBlock("loopEnd");
-    final TemporaryVar iVar = TemporaryVar("iVar");
-    currentBlock.add(Alloca(iVar, TypeInt()));
-    currentBlock.add(Store(VarRef(iVar), ConstInt(0)));
-    currentBlock.add(Jump(loopStart));
-
-    // loop condition: while i < size`
-    addBasicBlock(loopStart);
-    setCurrentBlock(loopStart);
-    final TemporaryVar i = TemporaryVar("i");
-    final TemporaryVar nextI = TemporaryVar("nextI");
-    loopStart.add(Load(i, VarRef(iVar)));
-    TemporaryVar smallerSize = TemporaryVar("smallerSize");
-    addInstruction(BinaryOperation(smallerSize,
-        VarRef(i), Slt(), VarRef(size)));
-    currentBlock.add(Branch(VarRef(smallerSize), loopBody, loopEnd));
-
-    // loop body
-    addBasicBlock(loopBody);
-    setCurrentBlock(loopBody);
-    // ar[i] = 0;
-    final TemporaryVar iAddr = TemporaryVar("iAddr");
-    addInstruction(GetElementPtr(iAddr,
-        VarRef(newArray), OperandList(ConstInt(0), ConstInt(1), VarRef(i))));
-    addInstruction(Store(VarRef(iAddr), defaultValue(componentType)));
-
-    // nextI = i + 1;
-    addInstruction(BinaryOperation(nextI, VarRef(i), Add(), ConstInt(1)));
-    // store new value in i
-    addInstruction(Store(VarRef(iVar), VarRef(nextI)));
-
-    loopBody.add(Jump(loopStart));
-
-    addBasicBlock(loopEnd);
-    loopEnd.add(ReturnExpr(VarRef(newArray)));
+    addInstruction(ReturnExpr(VarRef(newArray)));
+  }
+
+  private void initClasses() {
+    for (NQJClassDecl c : javaProg.getClassDecls()) {
+      initObjectStruct(c);
+      initVirtualTable(c);
+
+      // only declared methods get a proc, inherited ones are shared with the superclass
+      for (NQJFunctionDecl f : c.getMethods()) {
+        initFunction(f, c);
+      }
+    }
   }
 
   private void translateClasses() {
     for (NQJClassDecl c : javaProg.getClassDecls()) {
       translateClass(c);
     }
+  }
 
-    currentClass = null;
+  private void createVirtualTableGlobals() {
+    for (NQJClassDecl c : javaProg.getClassDecls()) {
+      createVirtualTableGlobal(c);
+    }
   }
 
   private void createObjectStructs() {
@@ -304,22 +288,10 @@ public class Translator {
   }
 
   private void translateClass(NQJClassDecl c) {
-    // it is important to initialize object structs before translating methods
-    // otherwise it will throw null pointer exception
-    initObjectStruct(c);
-    currentClass = c;
-
-    for (NQJFunctionDecl f : getMethodsHierarchy(c)) {
-      initFunction(f, c);
-    }
-
-    for (NQJFunctionDecl f : getMethodsHierarchy(c)) {
+    // inherited methods were already translated in their declaring class
+    for (NQJFunctionDecl f : c.getMethods()) {
       translateFunction(f, c);
     }
-
-    // global tables are initialized in the last place
-    initVirtualTable(c);
-    createVirtualTableGlobal(c);
   }
 
   private void createObjectStruct(NQJClassDecl c) {
@@ -334,7 +306,7 @@ public class Translator {
     // first position is reserved for vtable reference
     fields.add(StructField(TypePointer(vtableStruct), "vtablePtr"));
 
-    for (NQJVarDecl v : getFieldsHierarchy(c)) {
+    for (NQJVarDecl v : layouts.getFields(c)) {
       Type type = translateType(v.getType());
       fields.add(StructField(type, v.getName()));
     }
@@ -360,9 +332,11 @@ public class Translator {
     List<StructField> fields = new ArrayList<>();
 
     // initialization virtual table structs with values (fields)
-    for (NQJFunctionDecl f : getMethodsHierarchy(c)) {
+    for (NQJFunctionDecl f : layouts.getVirtualTable(c)) {
+      // the slot has the type of the shared proc, which expects its declaring class as receiver
+      NQJClassDecl declaringClass = layouts.getDeclaringClass(f);
       List<Type> params = new ArrayList<>();
-      params.add(TypePointer(getObjectStruct(c)));
+      params.add(getObjectPointerType(declaringClass));
 
       for (NQJVarDecl p : f.getFormalParameters()) {
         params.add(translateType(p.getType()));
@@ -370,7 +344,7 @@ public class Translator {
 
       TypeProc type = TypeProc(TypeRefList(params), translateType(f.getReturnType()));
       // again, suffix(_ + CLASS_NAME) is used to properly match function pointers with methods
-      fields.add(StructField(TypePointer(type), f.getName() + "_" + c.getName()));
+      fields.add(StructField(TypePointer(type), f.getName() + "_" + declaringClass.getName()));
     }
 
     // update vtable fields
@@ -384,8 +358,9 @@ public class Translator {
     TypeStruct struct = virtualTableStruct.get(c);
     List<Const> values = new ArrayList<>();
 
-    // collecting references of every method from the class considering inheritance
-    for (NQJFunctionDecl f : getMethodsHierarchy(c)) {
+    // collecting references of every method from the class considering inheritance,
+    // inherited methods reference the proc of their declaring class
+    for (NQJFunctionDecl f : layouts.getVirtualTable(c)) {
       values.add(ProcedureRef(functionImpl.get(f)));
     }
 
@@ -432,23 +407,9 @@ public class Translator {
 
     // if the function belong to a class
     if (c != null) {
-      // allocate memory for object pointer
-      TemporaryVar structPtr = TemporaryVar(c.getName() + "_ptr");
-      addInstruction(Alloca(structPtr, getObjectPointerType(c)));
-      addInstruction(Store(VarRef(structPtr), VarRef(proc.getParameters().get(0))));
-
-      // get value of the pointer
-      TemporaryVar structLoad = TemporaryVar("structLoad");
-      addInstruction(Load(structLoad, VarRef(structPtr)));
-
-      int i = 1;
-      // store addresses of each field from the object pointer
-      for (NQJVarDecl param : getFieldsHierarchy(c)) {
-        TemporaryVar paramAddr = TemporaryVar(param.getName() + "_addr");
-        addInstruction(GetElementPtr(paramAddr, VarRef(structLoad), OperandList(ConstInt(0), ConstInt(i++))));
-
-        localVarLocation.put(param, paramAddr);
-        nameVarDecl.put(param.getName(), param);
+      // field addresses are not computed here, but at each access (see getVarAddress)
+      for (NQJVarDecl field : layouts.getFields(c)) {
+        nameVarDecl.put(field.getName(), field);
       }
     }
 
@@ -542,21 +503,33 @@ public class Translator {
     currentBlock.add(instruction);
   }
 
+  /**
+   * Creates the branch of a runtime check, whose edge to the error block is almost never taken.
+   */
+  static Branch checkBranch(Operand condition, BasicBlock ifTrue, BasicBlock ifFalse,
+                            BasicBlock error) {
+    Branch branch = Branch(condition, ifTrue, ifFalse);
+    branch.setTrueWeight(ifTrue == error ? UNLIKELY_WEIGHT : LIKELY_WEIGHT);
+    branch.setFalseWeight(ifFalse == error ? UNLIKELY_WEIGHT : LIKELY_WEIGHT);
+    return branch;
+  }
+
   // translateType was rewritten for NQJType, instead of binding to analysis.Type
+  // the result is always an interned type
   Type translateType(NQJType type) {
     Type result = translatedType.get(type);
 
     if (result == null) {
       if (type instanceof NQJTypeInt) {
-        result = TypeInt();
+        result = types.intern(TypeInt());
       } else if (type instanceof NQJTypeBool) {
-        result = TypeBool();
+        result = types.intern(TypeBool());
       } else if (type instanceof NQJTypeClass) {
         NQJTypeClass tc = (NQJTypeClass) type;
-        result = TypePointer(getObjectStruct(getClassDeclByName(tc.getName())));
+        result = getObjectPointerType(getClassDeclByName(tc.getName()));
       } else if (type instanceof NQJTypeArray) {
         NQJTypeArray ta = (NQJTypeArray) type;
-        result = TypePointer(getArrayStruct(translateType(ta.getComponentType())));
+        result = getArrayPointerType(translateType(ta.getComponentType()));
       } else {
         throw new RuntimeException("unhandled case " + type);
       }
@@ -568,58 +541,33 @@ public class Translator {
   }
 
   NQJClassDecl getClassDeclByFunctionDecl(NQJFunctionDecl f) {
-    for (NQJClassDecl classDecl : javaProg.getClassDecls()) {
-      for (NQJFunctionDecl functionDecl : classDecl.getMethods()) {
-        if (f == functionDecl) {
-          return classDecl;
-        }
-      }
-    }
-
-    throw new RuntimeException("Function " + f.getName() + " is not defined");
-
+    return layouts.getDeclaringClass(f);
   }
 
   NQJClassDecl getClassDeclByName(String name) {
-    for (NQJClassDecl classDecl : javaProg.getClassDecls()) {
-      if (classDecl.getName().equals(name)) {
-        return classDecl;
-      }
-    }
-
-    throw new RuntimeException("Class " + name + " is not defined");
+    return layouts.getClassDeclByName(name);
   }
 
   /**
-   Used for handling field accesses
+   Used for handling field accesses, the vtable reference at position 0 is not counted
    */
-  int getIndexOfFieldByName(String c, String f) {
-    List<NQJVarDecl> fieldsHierarchy = getFieldsHierarchy(getClassDeclByName(c));
-
-    for (int i = 0; i < fieldsHierarchy.size(); i++) {
-      if (fieldsHierarchy.get(i).getName().equals(f)) {
-        return i;
-      }
-    }
-
-    throw new RuntimeException("Field " + f + " is not defined in class " + c);
+  int getFieldIndex(NQJVarDecl field) {
+    return layouts.getFieldIndex(field);
   }
 
   /**
    Used for handling method calls
    */
-  int getIndexOfMethodByName(String c, String m) {
-    List<NQJFunctionDecl> methodsHierarchy = getMethodsHierarchy(getClassDeclByName(c));
-
-    for (int i = 0; i < methodsHierarchy.size(); i++) {
-      if (methodsHierarchy.get(i).getName().equals(m)) {
-        return i;
-      }
-    }
-
-    throw new RuntimeException("Method " + m + "does not exist in class " + c);
+  int getMethodSlot(NQJFunctionDecl method) {
+    return layouts.getMethodSlot(method);
   }
 
+  /**
+   * Checks whether a call of the method might reach an overriding method in a subclass.
+   */
+  boolean isOverridden(NQJFunctionDecl method) {
+    return layouts.isOverridden(method);
+  }
 
   Parameter getThisParameter() {
     // in our case 'this' is always the first parameter
@@ -640,7 +588,7 @@ public class Translator {
 
     BasicBlock whenIsNull = newBasicBlock("whenIsNull");
     BasicBlock notNull = newBasicBlock("notNull");
-    currentBlock.add(Branch(VarRef(isNull), whenIsNull, notNull));
+    currentBlock.add(checkBranch(VarRef(isNull), whenIsNull, notNull, whenIsNull));
 
     addBasicBlock(whenIsNull);
     whenIsNull.add(HaltWithError(errorMessage));
@@ -659,7 +607,8 @@ public class Translator {
   }
 
   public Operand getNewArrayFunc(Type componentType) {
-    Proc proc = newArrayFuncForType.computeIfAbsent(componentType, this::createNewArrayProc);
+    Proc proc = newArrayFuncForType.computeIfAbsent(types.intern(componentType),
+        this::createNewArrayProc);
     return ProcedureRef(proc);
   }
 
@@ -670,14 +619,14 @@ public class Translator {
   }
 
   private Type getArrayPointerType(Type componentType) {
-    return TypePointer(getArrayStruct(componentType));
+    return types.intern(TypePointer(getArrayStruct(componentType)));
   }
 
   TypeStruct getArrayStruct(Type type) {
-    return arrayStruct.computeIfAbsent(type, t -> {
-      TypeStruct struct = TypeStruct("array_" + type, StructFieldList(
-          StructField(TypeInt(), "length"),
-          StructField(TypeArray(type, 0), "data")
+    return arrayStruct.computeIfAbsent(types.intern(type), t -> {
+      TypeStruct struct = TypeStruct("array_" + t, StructFieldList(
+          StructField(types.intern(TypeInt()), "length"),
+          StructField(types.intern(TypeArray(t, 0)), "data")
       ));
       prog.getStructTypes().add(struct);
       return struct;
@@ -698,59 +647,7 @@ public class Translator {
   }
 
   Type getObjectPointerType(NQJClassDecl c) {
-    return TypePointer(getObjectStruct(c));
-  }
-
-  /**
-   * Returns a hierarchy of methods from superclasses of a particular class
-   */
-  List<NQJFunctionDecl> getMethodsHierarchy(NQJClassDecl c) {
-    List<NQJFunctionDecl> methods = new ArrayList<>(c.getMethods());
-    Set<String> names = c.getMethods().stream()
-        .map(NQJFunctionDecl::getName)
-        .collect(Collectors.toSet());
-    NQJClassDecl superClass = c.getDirectSuperClass();
-    NQJClassDecl current = c;
-
-    while (superClass != null) {
-      for (NQJFunctionDecl f : superClass.getMethods()) {
-        if (!names.contains(f.getName())) {
-          methods.add(0, f);
-          names.add(f.getName());
-        }
-      }
-
-      current = superClass;
-      superClass = current.getDirectSuperClass();
-    }
-
-    return methods;
-  }
-
-  /**
-   * Returns a hierarchy of fields from superclasses of a particular class
-   */
-  List<NQJVarDecl> getFieldsHierarchy(NQJClassDecl c) {
-    List<NQJVarDecl> fields = new ArrayList<>(c.getFields());
-    Set<String> names = c.getFields().stream()
-        .map(NQJVarDecl::getName)
-        .collect(Collectors.toSet());
-    NQJClassDecl superClass = c.getDirectSuperClass();
-    NQJClassDecl current = c;
-
-    while (superClass != null) {
-      for (NQJVarDecl v : superClass.getFields()) {
-        if (!names.contains(v.getName())) {
-          fields.add(0, v);
-          names.add(v.getName());
-        }
-      }
-
-      current = superClass;
-      superClass = current.getDirectSuperClass();
-    }
-
-    return fields;
+    return types.intern(TypePointer(getObjectStruct(c)));
   }
 
   TypeStruct getObjectStruct(NQJClassDecl c) {
@@ -761,11 +658,6 @@ public class Translator {
     throw new RuntimeException("ObjectStruct for class " + c.getName() + " is not defined");
   }
 
-  // used in field access by this operator
-  NQJClassDecl getCurrentClass() {
-    return currentClass;
-  }
-
   /**
    * Returns an argument list of either NQJFunctionCall or NQJFunctionCall
    */
@@ -860,53 +752,4 @@ public class Translator {
       }
     });
   }
-
-  private Operand defaultValue(Type componentType) {
-    return componentType.match(new Type.Matcher<>() {
-      @Override
-      public Operand case_TypeByte(TypeByte typeByte) {
-        throw new RuntimeException("TODO implement");
-      }
-
-      @Override
-      public Operand case_TypeArray(TypeArray typeArray) {
-        throw new RuntimeException("TODO implement");
-      }
-
-      @Override
-      public Operand case_TypeProc(TypeProc typeProc) {
-        throw new RuntimeException("TODO implement");
-      }
-
-      @Override
-      public Operand case_TypeInt(TypeInt typeInt) {
-        return ConstInt(0);
-      }
-
-      @Override
-      public Operand case_TypeStruct(TypeStruct typeStruct) {
-        throw new RuntimeException("TODO implement");
-      }
-
-      @Override
-      public Operand case_TypeNullpointer(TypeNullpointer typeNullpointer) {
-        return Nullpointer();
-      }
-
-      @Override
-      public Operand case_TypeVoid(TypeVoid typeVoid) {
-        throw new RuntimeException("TODO implement");
-      }
-
-      @Override
-      public Operand case_TypeBool(TypeBool typeBool) {
-        return ConstBool(false);
-      }
-
-      @Override
-      public Operand case_TypePointer(TypePointer typePointer) {
-        return Nullpointer();
-      }
-    });
-  }
 }
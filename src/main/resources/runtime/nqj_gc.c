@@ -0,0 +1,151 @@
+/*
+ * Precise mark-sweep garbage collector for programs compiled with -gc.
+ *
+ * The compiled code keeps every heap pointer, which has to survive an allocation,
+ * in a frame of the shadow stack starting at nqj_gc_top. Each object is preceded by
+ * a header. Its last word is the type map of the object, stored by the compiled code
+ * right after the allocation. Objects without a type map contain no heap pointers.
+ *
+ * Setting NQJ_GC_STRESS collects before every allocation, setting NQJ_GC_STATS prints
+ * the peak heap size at exit.
+ */
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+/* a frame of the shadow stack, see minillvm.optimization.ShadowStack */
+struct frame {
+  struct frame *next;
+  int32_t count;
+  void *roots[];
+};
+
+struct type_map {
+  int32_t field_count;
+  /* offset of the pointer elements of an array, the length is at offset 0, or -1 */
+  int32_t elements_offset;
+  int32_t offsets[];
+};
+
+struct header {
+  struct header *next;
+  uint32_t size;
+  uint32_t marked;
+  const struct type_map *map;
+};
+
+extern struct frame *nqj_gc_top;
+
+/* writes the buffered output of the program */
+extern void nqj_flush(void);
+
+#define MIN_THRESHOLD (1 << 20)
+
+static struct header *objects;
+static size_t allocated;
+static size_t peak;
+static size_t threshold = MIN_THRESHOLD;
+static int stress = -1;
+
+static void **mark_stack;
+static size_t mark_top;
+static size_t mark_capacity;
+
+static void out_of_memory(void) {
+  nqj_flush();
+  printf("Out of memory\n");
+  exit(222);
+}
+
+static void push(void *object) {
+  if (object == NULL) {
+    return;
+  }
+  struct header *h = (struct header *) object - 1;
+  if (h->marked) {
+    return;
+  }
+  h->marked = 1;
+  if (mark_top == mark_capacity) {
+    mark_capacity = mark_capacity == 0 ? 1024 : 2 * mark_capacity;
+    mark_stack = realloc(mark_stack, mark_capacity * sizeof(void *));
+    if (mark_stack == NULL) {
+      out_of_memory();
+    }
+  }
+  mark_stack[mark_top++] = object;
+}
+
+static void mark(void) {
+  for (struct frame *f = nqj_gc_top; f != NULL; f = f->next) {
+    for (int32_t i = 0; i < f->count; i++) {
+      push(f->roots[i]);
+    }
+  }
+  while (mark_top > 0) {
+    char *object = mark_stack[--mark_top];
+    const struct type_map *map = ((struct header *) object - 1)->map;
+    if (map == NULL) {
+      continue;
+    }
+    for (int32_t i = 0; i < map->field_count; i++) {
+      push(*(void **) (object + map->offsets[i]));
+    }
+    if (map->elements_offset >= 0) {
+      int32_t length = *(int32_t *) object;
+      void **elements = (void **) (object + map->elements_offset);
+      for (int32_t i = 0; i < length; i++) {
+        push(elements[i]);
+      }
+    }
+  }
+}
+
+static void sweep(void) {
+  struct header **link = &objects;
+  while (*link != NULL) {
+    struct header *h = *link;
+    if (h->marked) {
+      h->marked = 0;
+      link = &h->next;
+    } else {
+      *link = h->next;
+      allocated -= h->size;
+      free(h);
+    }
+  }
+}
+
+static void print_stats(void) {
+  fprintf(stderr, "peak heap: %zu bytes\n", peak);
+}
+
+void nqj_gc_collect(void) {
+  mark();
+  sweep();
+  threshold = 2 * allocated > MIN_THRESHOLD ? 2 * allocated : MIN_THRESHOLD;
+}
+
+void *nqj_gc_alloc(int32_t size) {
+  if (stress < 0) {
+    stress = getenv("NQJ_GC_STRESS") != NULL;
+    if (getenv("NQJ_GC_STATS") != NULL) {
+      atexit(print_stats);
+    }
+  }
+  if (stress || allocated + (uint32_t) size > threshold) {
+    nqj_gc_collect();
+  }
+  struct header *h = calloc(1, sizeof(struct header) + (uint32_t) size);
+  if (h == NULL) {
+    out_of_memory();
+  }
+  h->size = (uint32_t) size;
+  h->next = objects;
+  objects = h;
+  allocated += h->size;
+  if (allocated > peak) {
+    peak = allocated;
+  }
+  return h + 1;
+}
@@ -0,0 +1,112 @@
+package notquitejava.optimization;
+
+import minillvm.ast.BasicBlock;
+import minillvm.ast.BinaryOperation;
+import minillvm.ast.Instruction;
+import minillvm.ast.Proc;
+import minillvm.ast.Prog;
+import minillvm.ast.Select;
+import minillvm.ast.Slt;
+import minillvm.ast.Ult;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.assertEquals;
+
+public class BoundsCheckEliminationTests {
+
+	private static final String OUT_OF_BOUNDS = "Index out of bounds";
+
+	@Test
+	public void canonicalLoop() throws Exception {
+		Prog prog = compile("Loop.java", "int main() {\n"
+				+ "printInt(fill(new int[5]));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int fill(int[] a) {\n"
+				+ "int i; int s;\n"
+				+ "i = 0; s = 0;\n"
+				+ "while (i < a.length) { a[i] = i; s = s + a[i]; i = i + 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		assertEquals(0, countErrors(findProc(prog, "fill"), OUT_OF_BOUNDS));
+	}
+
+	@Test
+	public void conjunctionInCondition() throws Exception {
+		Prog prog = compile("And.java", "int main() {\n"
+				+ "printInt(sum(new int[5], 3));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int sum(int[] a, int limit) {\n"
+				+ "int i; int n; int s;\n"
+				+ "i = 0; s = 0; n = a.length;\n"
+				+ "while (i < n && i < limit) { s = s + a[i]; i = i + 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		Proc sum = findProc(prog, "sum");
+		// the condition is computed without a branch
+		assertEquals(1, countInstructions(sum, Select.class));
+		assertEquals(0, countErrors(sum, OUT_OF_BOUNDS));
+	}
+
+	@Test
+	public void constantIndexes() throws Exception {
+		Prog prog = compile("Const.java", "int main() {\n"
+				+ "int[] a;\n"
+				+ "a = new int[10];\n"
+				+ "printInt(a[0]);\n"
+				+ "printInt(a[9]);\n"
+				+ "printInt(a[10]);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		assertEquals(1, countErrors(findProc(prog, "main"), OUT_OF_BOUNDS));
+	}
+
+	@Test
+	public void checksThatMayFailStay() throws Exception {
+		Prog prog = compile("Keep.java", "int main() {\n"
+				+ "printInt(f(new int[5], 0 - 1));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(int[] a, int i) {\n"
+				+ "int s; int j;\n"
+				+ "s = 0; j = 0;\n"
+				// i might start negative
+				+ "while (i < a.length) { s = s + a[i]; i = i + 1; }\n"
+				// j + 1 might reach the length
+				+ "while (j < a.length) { s = s + a[j + 1]; j = j + 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		assertEquals(2, countErrors(findProc(prog, "f"), OUT_OF_BOUNDS));
+	}
+
+	@Test
+	public void singleUnsignedCheck() throws Exception {
+		Prog prog = compile("Get.java", "int main() {\n"
+				+ "printInt(get(new int[5], 0 - 1));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int get(int[] a, int i) {\n"
+				+ "return a[i];\n"
+				+ "}\n");
+		Proc get = findProc(prog, "get");
+		// a negative index is a large unsigned one, so it needs no separate check
+		assertEquals(1, countComparisons(get, Ult.class));
+		assertEquals(0, countComparisons(get, Slt.class));
+		assertEquals(1, countErrors(get, OUT_OF_BOUNDS));
+	}
+
+	private static int countComparisons(Proc proc, Class<?> operator) {
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof BinaryOperation
+						&& operator.isInstance(((BinaryOperation) instr).getOperator())) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,66 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+public class ConstantPropagationTests {
+
+	@Test
+	public void foldsArithmeticAndBranches() throws Exception {
+		Prog prog = compile("Fold.java", "int main() {\n"
+				+ "int x; int y;\n"
+				+ "x = 3 + 4;\n"
+				+ "y = x * 2;\n"
+				+ "if (y < 10) { printInt(1); } else { printInt(y - 1); }\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(0, countInstructions(main, BinaryOperation.class));
+		assertEquals(0, countInstructions(main, Branch.class));
+		Print print = findFirst(main, Print.class);
+		assertTrue(print.getE() instanceof ConstInt);
+		assertEquals(13, ((ConstInt) print.getE()).getIntVal());
+	}
+
+	@Test
+	public void literalDivisorRemovesGuards() throws Exception {
+		Prog prog = compile("Div.java", "int main() {\n"
+				+ "printInt(f(7));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(int x) {\n"
+				+ "return x / 2;\n"
+				+ "}\n");
+		Proc f = findProc(prog, "f");
+		assertEquals(0, countErrors(f, "Division by zero"));
+		assertEquals(0, countInstructions(f, Branch.class));
+	}
+
+	@Test
+	public void divisionByZeroStays() throws Exception {
+		Prog prog = compile("DivZero.java", "int main() {\n"
+				+ "printInt(7 / 0);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		// the error is now reached unconditionally
+		Proc main = findProc(prog, "main");
+		assertEquals(1, countErrors(main, "Division by zero"));
+		assertEquals(0, countInstructions(main, Print.class));
+	}
+
+	@Test
+	public void loopVariablesAreNotConstant() throws Exception {
+		Prog prog = compile("Loop.java", "int main() {\n"
+				+ "int i;\n"
+				+ "i = 0;\n"
+				+ "while (i < 10) { printInt(i); i = i + 1; }\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(1, countInstructions(main, Branch.class));
+		assertFalse(findFirst(main, Print.class).getE() instanceof ConstInt);
+	}
+}
@@ -0,0 +1,301 @@
+package notquitejava.optimization;
+
+import main.NotQuiteJavaCompiler;
+import minillvm.analysis.ControlFlow;
+import minillvm.analysis.Dominators;
+import minillvm.analysis.Loops;
+import minillvm.analysis.Loops.Loop;
+import minillvm.ast.*;
+import minillvm.optimization.AnalysisManager;
+import minillvm.optimization.FunctionPass;
+import minillvm.optimization.PassManager;
+import minillvm.optimization.ProcAnalysis;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.*;
+
+import static minillvm.ast.Ast.*;
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the dominator and loop analyses on translated programs and on large synthetic procedures.
+ */
+public class ControlFlowAnalysisTests {
+
+	@Test
+	public void dominatorsOfTranslatedStatements() throws Exception {
+		File[] files = new File("testdata/translation/stmts").listFiles();
+		assertNotNull(files);
+		for (File f : files) {
+			Prog prog = compile(f.getName(), Files.readString(f.toPath()));
+			for (Proc proc : prog.getProcedures()) {
+				checkAgainstNaiveDominators(f.getName() + ":" + proc.getName(), proc);
+			}
+		}
+	}
+
+	@Test
+	public void nestedWhileLoops() throws Exception {
+		Prog prog = compile("Nested.java", "int main() {\n"
+				+ "int i; int j;\n"
+				+ "i = 0;\n"
+				+ "while (i < 3) {\n"
+				+ "  j = 0;\n"
+				+ "  while (j < 3) { printInt(i * j); j = j + 1; }\n"
+				+ "  i = i + 1;\n"
+				+ "}\n"
+				+ "while (i < 5) { i = i + 1; }\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		Map<BasicBlock, List<BasicBlock>> preds = ControlFlow.getPredecessors(main);
+		Loops loops = new Loops(preds, new Dominators(main, preds));
+
+		assertEquals(3, loops.getLoops().size());
+		assertEquals(2, loops.getTopLevelLoops().size());
+		Loop outer = loops.getTopLevelLoops().get(0);
+		assertEquals(1, outer.getChildren().size());
+		Loop inner = outer.getChildren().get(0);
+		assertEquals(2, inner.getDepth());
+		assertSame(outer, inner.getParent());
+		assertTrue(outer.getBlocks().containsAll(inner.getBlocks()));
+		for (Loop loop : loops.getLoops()) {
+			assertTrue(loop.getHeader().getName().startsWith("whileStart"));
+			assertNotNull("loop " + loop + " has a preheader", loop.getPreheader());
+			assertFalse(loop.contains(loop.getPreheader()));
+			assertEquals(1, loop.getExitBlocks().size());
+		}
+		for (BasicBlock b : inner.getBlocks()) {
+			assertEquals(2, loops.getLoopDepth(b));
+			assertSame(inner, loops.getLoopFor(b));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void largeProcedure() {
+		// a loop around 20000 diamonds in sequence
+		int n = 20000;
+		BasicBlockList blocks = BasicBlockList();
+		BasicBlock entry = block("entry");
+		blocks.add(entry);
+		BasicBlock[] heads = new BasicBlock[n];
+		BasicBlock[] lefts = new BasicBlock[n];
+		BasicBlock[] joins = new BasicBlock[n];
+		for (int i = 0; i < n; i++) {
+			heads[i] = block("head" + i);
+			lefts[i] = block("left" + i);
+			joins[i] = block("join" + i);
+			blocks.add(heads[i]);
+			blocks.add(lefts[i]);
+			blocks.add(joins[i]);
+		}
+		BasicBlock exit = block("exit");
+		blocks.add(exit);
+		entry.add(Jump(heads[0]));
+		for (int i = 0; i < n; i++) {
+			heads[i].add(Branch(ConstBool(true), lefts[i], joins[i]));
+			lefts[i].add(Jump(joins[i]));
+			if (i + 1 < n) {
+				joins[i].add(Jump(heads[i + 1]));
+			} else {
+				joins[i].add(Branch(ConstBool(true), heads[0], exit));
+			}
+		}
+		exit.add(ReturnVoid());
+		Proc proc = Proc("large", TypeVoid(), ParameterList(), blocks);
+
+		Map<BasicBlock, List<BasicBlock>> preds = ControlFlow.getPredecessors(proc);
+		Dominators dominators = new Dominators(proc, preds);
+		for (int i = 0; i < n; i++) {
+			assertSame(heads[i], dominators.getImmediateDominator(joins[i]));
+			assertEquals(Set.of(joins[i]), dominators.getDominanceFrontier(lefts[i]));
+			assertTrue(dominators.dominates(heads[0], joins[i]));
+			assertFalse(dominators.dominates(lefts[i], joins[i]));
+		}
+		assertSame(joins[n - 1], dominators.getImmediateDominator(exit));
+		assertEquals(Set.of(heads[0]), dominators.getDominanceFrontier(joins[n - 1]));
+
+		Loops loops = new Loops(preds, dominators);
+		assertEquals(1, loops.getLoops().size());
+		Loop loop = loops.getLoops().get(0);
+		assertSame(entry, loop.getPreheader());
+		assertEquals(3 * n, loop.getBlocks().size());
+	}
+
+	private static BasicBlock block(String name) {
+		BasicBlock b = BasicBlock();
+		b.setName(name);
+		return b;
+	}
+
+	/**
+	 * Compares with dominator sets computed by the textbook data flow equations.
+	 */
+	private static void checkAgainstNaiveDominators(String name, Proc proc) {
+		Map<BasicBlock, List<BasicBlock>> preds = ControlFlow.getPredecessors(proc);
+		Dominators dominators = new Dominators(proc, preds);
+		List<BasicBlock> blocks = dominators.getReversePostorder();
+		Map<BasicBlock, Set<BasicBlock>> dom = new HashMap<>();
+		for (BasicBlock b : blocks) {
+			dom.put(b, new HashSet<>(blocks));
+		}
+		dom.put(blocks.get(0), Set.of(blocks.get(0)));
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock b : blocks.subList(1, blocks.size())) {
+				Set<BasicBlock> d = new HashSet<>(blocks);
+				for (BasicBlock p : preds.get(b)) {
+					if (dom.containsKey(p)) {
+						d.retainAll(dom.get(p));
+					}
+				}
+				d.add(b);
+				if (!d.equals(dom.get(b))) {
+					dom.put(b, d);
+					changed = true;
+				}
+			}
+		}
+
+		for (BasicBlock a : blocks) {
+			for (BasicBlock b : blocks) {
+				assertEquals(name + ": " + a.getName() + " dominates " + b.getName(),
+						dom.get(b).contains(a), dominators.dominates(a, b));
+			}
+			// y is in the frontier of a, if a dominates a predecessor of y, but not strictly y
+			Set<BasicBlock> frontier = new HashSet<>();
+			for (BasicBlock y : blocks) {
+				for (BasicBlock p : preds.get(y)) {
+					if (dom.containsKey(p) && dom.get(p).contains(a)
+							&& !(a != y && dom.get(y).contains(a))) {
+						frontier.add(y);
+					}
+				}
+			}
+			assertEquals(name + ": frontier of " + a.getName(), frontier,
+					dominators.getDominanceFrontier(a));
+		}
+	}
+
+	private static final String LOOP = "int main() {\n"
+			+ "int i;\n"
+			+ "i = 0;\n"
+			+ "while (i < 3) { printInt(i); i = i + 1; }\n"
+			+ "return 0;\n"
+			+ "}\n";
+
+	/**
+	 * A pass reporting a change without changing anything.
+	 */
+	private static FunctionPass changingPass(boolean preservesControlFlow) {
+		return new FunctionPass() {
+			@Override
+			public String getName() {
+				return "change";
+			}
+
+			@Override
+			public boolean run(Proc proc, AnalysisManager analyses) {
+				return true;
+			}
+
+			@Override
+			public boolean preservesControlFlow() {
+				return preservesControlFlow;
+			}
+		};
+	}
+
+	@Test
+	public void analysesAreCachedUntilInvalidated() throws Exception {
+		Proc main = findProc(compile("Loop.java", LOOP), "main");
+		int[] computed = {0};
+		ProcAnalysis<Object> counting = new ProcAnalysis<>("counting", false, (proc, a) -> {
+			computed[0]++;
+			return new Object();
+		});
+		AnalysisManager analyses = new AnalysisManager();
+		Dominators dominators = analyses.get(ProcAnalysis.DOMINATORS, main);
+		Object result = analyses.get(counting, main);
+		assertSame(dominators, analyses.get(ProcAnalysis.DOMINATORS, main));
+		assertSame(result, analyses.get(counting, main));
+		assertEquals(1, computed[0]);
+
+		// only analyses of the control flow survive passes preserving it
+		analyses.invalidateExceptControlFlow(main);
+		assertSame(dominators, analyses.get(ProcAnalysis.DOMINATORS, main));
+		assertNotSame(result, analyses.get(counting, main));
+		assertEquals(2, computed[0]);
+
+		analyses.invalidate(main);
+		assertNotSame(dominators, analyses.get(ProcAnalysis.DOMINATORS, main));
+		analyses.get(counting, main);
+		assertEquals(3, computed[0]);
+	}
+
+	@Test
+	public void passManagerInvalidatesChangedProcedures() throws Exception {
+		Prog prog = compile("Loop.java", LOOP);
+		Proc main = findProc(prog, "main");
+
+		PassManager preserving = new PassManager().add(changingPass(true));
+		Loops loops = preserving.getAnalyses().get(ProcAnalysis.LOOPS, main);
+		preserving.run(prog);
+		assertSame(loops, preserving.getAnalyses().get(ProcAnalysis.LOOPS, main));
+
+		PassManager changing = new PassManager().add(changingPass(false));
+		loops = changing.getAnalyses().get(ProcAnalysis.LOOPS, main);
+		changing.run(prog);
+		assertNotSame(loops, changing.getAnalyses().get(ProcAnalysis.LOOPS, main));
+	}
+
+	@Test
+	public void verifyPassesNamesTheBrokenPass() throws Exception {
+		Prog prog = compile("Loop.java", LOOP);
+		PassManager passes = new PassManager().add(new FunctionPass() {
+			@Override
+			public String getName() {
+				return "drop-terminator";
+			}
+
+			@Override
+			public boolean run(Proc proc, AnalysisManager analyses) {
+				BasicBlock entry = proc.getBasicBlocks().get(0);
+				entry.remove(entry.size() - 1);
+				return true;
+			}
+		});
+		passes.setVerify(true);
+		try {
+			passes.run(prog);
+			fail("the broken program was not detected");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("after pass drop-terminator"));
+		}
+	}
+
+	@Test
+	public void compilerFlagsVerifyAndTimePasses() throws Exception {
+		NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+		compiler.parseArguments("-O", "-verify-passes", "-time-passes");
+		PrintStream originalErr = System.err;
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(err, true));
+		try {
+			compiler.compileString("Loop.java", LOOP);
+		} finally {
+			System.setErr(originalErr);
+		}
+		assertEquals(Collections.emptyList(), compiler.getTypeErrors());
+		String timings = err.toString();
+		for (String pass : new String[] {"mem2reg", "inline", "licm", "total"}) {
+			assertTrue(timings, timings.contains(pass));
+		}
+	}
+}
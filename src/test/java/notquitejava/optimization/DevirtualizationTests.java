@@ -0,0 +1,83 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.assertEquals;
+
+public class DevirtualizationTests {
+
+	private static final String CLASSES = "class A {\n"
+			+ "int get() { return 1; }\n"
+			+ "int other() { return 3; }\n"
+			+ "}\n"
+			+ "class B extends A {\n"
+			+ "int get() { return 2; }\n"
+			+ "}\n";
+
+	/**
+	 * Counts the calls of the procedure with the given name.
+	 */
+	private static int countDirectCalls(Proc proc, String name) {
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof Call && ((Call) instr).getFunction() instanceof ProcedureRef
+						&& ((ProcedureRef) ((Call) instr).getFunction()).getProcedure().getName()
+						.equals(name)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void methodWithoutOverride() throws Exception {
+		Prog prog = compile("NoOverride.java", CLASSES
+				+ "int main() {\n"
+				+ "printInt(f(new B()));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(A a) {\n"
+				+ "return a.other();\n"
+				+ "}\n");
+		Proc f = findProc(prog, "f");
+		assertEquals(1, countDirectCalls(f, "other_A"));
+		assertEquals(0, countInstructions(f, Load.class));
+		// a null receiver is still reported
+		assertEquals(1, countErrors(f, "Nullpointer"));
+	}
+
+	@Test
+	public void knownClass() throws Exception {
+		Prog prog = compile("Known.java", CLASSES
+				+ "int main() {\n"
+				+ "A a;\n"
+				+ "a = new B();\n"
+				+ "printInt(a.get());\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(1, countDirectCalls(main, "get_B"));
+		assertEquals(0, countInstructions(main, Load.class));
+	}
+
+	@Test
+	public void overriddenMethodStaysVirtual() throws Exception {
+		Prog prog = compile("Virtual.java", CLASSES
+				+ "int main() {\n"
+				+ "printInt(f(new B()));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(A a) {\n"
+				+ "return a.get();\n"
+				+ "}\n");
+		Proc f = findProc(prog, "f");
+		assertEquals(0, countDirectCalls(f, "get_A"));
+		assertEquals(2, countInstructions(f, Load.class));
+		// a null receiver is reported like for a direct call
+		assertEquals(1, countErrors(f, "Nullpointer"));
+	}
+}
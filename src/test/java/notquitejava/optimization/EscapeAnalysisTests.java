@@ -0,0 +1,83 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+public class EscapeAnalysisTests {
+
+	private static final String POINT = "class Point {\n"
+			+ "int x;\n"
+			+ "int y;\n"
+			+ "}\n";
+
+	@Test
+	public void temporaryObjectIsReplacedByFields() throws Exception {
+		Prog prog = compile("Temporary.java", POINT
+				+ "int main() {\n"
+				+ "Point p;\n"
+				+ "p = new Point();\n"
+				+ "p.x = 3;\n"
+				+ "p.y = 4;\n"
+				+ "printInt(p.x + p.y);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(0, countInstructions(main, AllocZeroed.class));
+		assertEquals(0, countInstructions(main, Alloca.class));
+		Print print = findFirst(main, Print.class);
+		assertTrue(print.getE() instanceof ConstInt);
+		assertEquals(7, ((ConstInt) print.getE()).getIntVal());
+	}
+
+	@Test
+	public void returnedObjectStaysOnHeap() throws Exception {
+		Prog prog = compile("Returned.java", POINT
+				+ "int main() {\n"
+				+ "printInt(make().x);\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "Point make() {\n"
+				+ "Point p;\n"
+				+ "p = new Point();\n"
+				+ "p.x = 3;\n"
+				+ "return p;\n"
+				+ "}\n");
+		assertEquals(1, countInstructions(findProc(prog, "make"), AllocZeroed.class));
+	}
+
+	@Test
+	public void smallArrayOnStack() throws Exception {
+		Prog prog = compile("Small.java", "int main() {\n"
+				+ "int[] a;\n"
+				+ "a = new int[4];\n"
+				+ "a[1] = 5;\n"
+				+ "printInt(a[1] + a.length);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(0, countInstructions(main, Call.class));
+		assertEquals(1, countInstructions(main, Alloca.class));
+		// the constant size is still known
+		assertEquals(0, countErrors(main, "Index out of bounds"));
+	}
+
+	@Test
+	public void arrayPassedToCallStaysOnHeap() throws Exception {
+		Prog prog = compile("Passed.java", "int main() {\n"
+				+ "printInt(sum(new int[3]));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int sum(int[] a) {\n"
+				+ "int i;\n"
+				+ "int s;\n"
+				+ "i = 0;\n"
+				+ "s = 0;\n"
+				+ "while (i < a.length) { s = s + a[i]; i = i + 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		assertEquals(2, countInstructions(findProc(prog, "main"), Call.class));
+	}
+}
@@ -0,0 +1,84 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.assertEquals;
+
+public class GlobalValueNumberingTests {
+
+	private static final String CLASS_A = "class A {\n"
+			+ "int b;\n"
+			+ "int get() { return this.b + this.b; }\n"
+			+ "int set(int v) { b = v; return b; }\n"
+			+ "int call() { int x; x = b; this.get(); return x + b; }\n"
+			+ "}\n";
+
+	private Prog compileWithA() throws Exception {
+		return compile("Fields.java", CLASS_A
+				+ "int main() {\n"
+				+ "A a;\n"
+				+ "a = new A();\n"
+				+ "printInt(a.set(3) + a.get() + a.call());\n"
+				+ "return 0;\n"
+				+ "}\n");
+	}
+
+	@Test
+	public void repeatedFieldRead() throws Exception {
+		Proc get = findProc(compileWithA(), "get_A");
+		assertEquals(1, countInstructions(get, Load.class));
+		assertEquals(1, countInstructions(get, GetElementPtr.class));
+	}
+
+	@Test
+	public void storedValueIsForwarded() throws Exception {
+		Proc set = findProc(compileWithA(), "set_A");
+		assertEquals(0, countInstructions(set, Load.class));
+	}
+
+	@Test
+	public void callClobbersFields() throws Exception {
+		Proc call = findProc(compileWithA(), "call_A");
+		assertEquals(2, countInstructions(call, Load.class));
+	}
+
+	@Test
+	public void repeatedArrayLength() throws Exception {
+		Prog prog = compile("Length.java", "int main() {\n"
+				+ "printInt(f(new int[3]));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(int[] a) {\n"
+				+ "return a.length + a.length;\n"
+				+ "}\n");
+		Proc f = findProc(prog, "f");
+		assertEquals(1, countInstructions(f, Load.class));
+		assertEquals(1, countNullChecks(f));
+	}
+
+	@Test
+	public void classNamedLikeVirtualTable() throws Exception {
+		// the virtual table struct of A is also called A_table
+		Prog prog = compile("Names.java", "class A { int get() { return 1; } }\n"
+				+ "class A_table {\n"
+				+ "int v;\n"
+				+ "int bump(int n) {\n"
+				+ "if (n < 1) { v = v + 1; } else { this.bump(n - 1); }\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int call() { int x; x = v; this.bump(0); return x + v; }\n"
+				+ "}\n"
+				+ "int main() {\n"
+				+ "A a;\n"
+				+ "A_table t;\n"
+				+ "a = new A();\n"
+				+ "t = new A_table();\n"
+				+ "printInt(t.call() + a.get());\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc call = findProc(prog, "call_A_table");
+		assertEquals(2, countInstructions(call, Load.class));
+	}
+}
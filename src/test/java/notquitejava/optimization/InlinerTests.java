@@ -0,0 +1,56 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+public class InlinerTests {
+
+	@Test
+	public void getterAndConstructorAreInlined() throws Exception {
+		Prog prog = compile("Getter.java", "class A {\n"
+				+ "int b;\n"
+				+ "int getB() { return b; }\n"
+				+ "}\n"
+				+ "int main() {\n"
+				+ "A a;\n"
+				+ "a = new A();\n"
+				+ "printInt(a.getB());\n"
+				+ "return 0;\n"
+				+ "}\n");
+		assertEquals(0, countInstructions(findProc(prog, "main"), Call.class));
+	}
+
+	@Test
+	public void returnedValuesAreMerged() throws Exception {
+		Prog prog = compile("Max.java", "int main() {\n"
+				+ "printInt(max(3, 4));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int max(int x, int y) {\n"
+				+ "if (x < y) { return y; } else { }\n"
+				+ "return x;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(0, countInstructions(main, Call.class));
+		Print print = findFirst(main, Print.class);
+		assertTrue(print.getE() instanceof ConstInt);
+		assertEquals(4, ((ConstInt) print.getE()).getIntVal());
+	}
+
+	@Test
+	public void recursionIsNotInlined() throws Exception {
+		Prog prog = compile("Fib.java", "int main() {\n"
+				+ "printInt(fib(10));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int fib(int n) {\n"
+				+ "if (n < 2) { return n; } else { }\n"
+				+ "return fib(n - 1) + fib(n - 2);\n"
+				+ "}\n");
+		assertEquals(2, countInstructions(findProc(prog, "fib"), Call.class));
+		assertEquals(1, countInstructions(findProc(prog, "main"), Call.class));
+	}
+}
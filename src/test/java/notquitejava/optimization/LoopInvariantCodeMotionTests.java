@@ -0,0 +1,106 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.assertEquals;
+
+public class LoopInvariantCodeMotionTests {
+
+	@Test
+	public void arrayLengthLeavesLoop() throws Exception {
+		Prog prog = compile("Sum.java", "int main() {\n"
+				+ "printInt(sum(new int[5]));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int sum(int[] a) {\n"
+				+ "int i; int s;\n"
+				+ "i = 0; s = 0;\n"
+				+ "while (i < a.length) { s = s + a[i]; i = i + 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		Proc sum = findProc(prog, "sum");
+		// the null check runs once before the loop
+		assertEquals(1, countNullChecks(sum));
+		assertEquals(1, countErrors(sum, "Nullpointer"));
+		// only the element address and load stay in the loop
+		assertEquals(1, countInstructionsInLoops(sum, GetElementPtr.class));
+		assertEquals(1, countInstructionsInLoops(sum, Load.class));
+	}
+
+	@Test
+	public void fieldReadLeavesLoop() throws Exception {
+		Prog prog = compile("Field.java", "class A {\n"
+				+ "int b;\n"
+				+ "int sum(int n) {\n"
+				+ "int i; int s;\n"
+				+ "i = 0; s = 0;\n"
+				+ "while (i < n) { s = s + b; i = i + 1; }\n"
+				+ "return s;\n"
+				+ "}\n"
+				+ "}\n"
+				+ "int main() {\n"
+				+ "A a;\n"
+				+ "a = new A();\n"
+				+ "printInt(a.sum(3));\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc sum = findProc(prog, "sum_A");
+		assertEquals(0, countInstructionsInLoops(sum, Load.class));
+		assertEquals(1, countInstructions(sum, Load.class));
+	}
+
+	@Test
+	public void storedFieldStaysInLoop() throws Exception {
+		Prog prog = compile("Store.java", "class A {\n"
+				+ "int b;\n"
+				+ "int count(int n) {\n"
+				+ "while (b < n) { b = b + 1; }\n"
+				+ "return b;\n"
+				+ "}\n"
+				+ "}\n"
+				+ "int main() {\n"
+				+ "A a;\n"
+				+ "a = new A();\n"
+				+ "printInt(a.count(3));\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc count = findProc(prog, "count_A");
+		// the reads in the condition and in the body
+		assertEquals(2, countInstructionsInLoops(count, Load.class));
+	}
+
+	@Test
+	public void exitBranchStaysIfLoopValueIsUsedAfter() throws Exception {
+		Prog prog = compile("Exit.java", "int main() {\n"
+				+ "printInt(count(true));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int count(boolean b) {\n"
+				+ "int i;\n"
+				+ "i = 0;\n"
+				+ "while (b) { i = i + 1; if (5 < i) { return i; } else { } }\n"
+				+ "return i;\n"
+				+ "}\n");
+		assertDefinitionsDominateUses(findProc(prog, "count"));
+	}
+
+	@Test
+	public void elementLoadIsNotSpeculated() throws Exception {
+		Prog prog = compile("Element.java", "int main() {\n"
+				+ "printInt(f(new int[1], 7));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(int[] a, int k) {\n"
+				+ "int s;\n"
+				+ "s = a.length;\n"
+				// the body never runs, so a[k] must not be read
+				+ "while (s < 0) { s = s + a[k]; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		Proc f = findProc(prog, "f");
+		assertEquals(1, countInstructionsInLoops(f, Load.class));
+		assertEquals(1, countErrors(f, "Index out of bounds"));
+	}
+}
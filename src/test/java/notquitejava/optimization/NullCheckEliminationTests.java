@@ -0,0 +1,68 @@
+package notquitejava.optimization;
+
+import minillvm.ast.Prog;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.assertEquals;
+
+public class NullCheckEliminationTests {
+
+	@Test
+	public void freshArray() throws Exception {
+		Prog prog = compile("Fresh.java", "int main() {\n"
+				+ "int[] a; int i;\n"
+				+ "a = new int[10];\n"
+				+ "i = 0;\n"
+				+ "while (i < a.length) { a[i] = i; i = i + 1; }\n"
+				+ "printInt(a[3]);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		assertEquals(0, countNullChecks(findProc(prog, "main")));
+	}
+
+	@Test
+	public void dominatingCheck() throws Exception {
+		Prog prog = compile("Param.java", "int main() {\n"
+				+ "printInt(sum(new int[5]));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int sum(int[] a) {\n"
+				+ "int i; int s;\n"
+				+ "i = 0; s = 0;\n"
+				+ "while (i < a.length) { s = s + a[i] + a[0]; i = i + 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		// only the check for reading the length in the loop condition remains
+		assertEquals(1, countNullChecks(findProc(prog, "sum")));
+	}
+
+	@Test
+	public void nullArrayKeepsCheck() throws Exception {
+		Prog prog = compile("Null.java", "int main() {\n"
+				+ "int[] a;\n"
+				+ "a = null;\n"
+				+ "printInt(a[0]);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		assertEquals(1, countNullChecks(findProc(prog, "main")));
+	}
+
+	@Test
+	public void phiOfArrays() throws Exception {
+		Prog prog = compile("Phi.java", "int main() {\n"
+				+ "printInt(f(1));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(int n) {\n"
+				+ "int[] a;\n"
+				+ "a = new int[2];\n"
+				+ "if (0 < n) { a = new int[3]; } else { }\n"
+				+ "printInt(a.length);\n"
+				+ "if (1 < n) { a = null; } else { }\n"
+				+ "return a.length;\n"
+				+ "}\n");
+		// the second length read may see null
+		assertEquals(1, countNullChecks(findProc(prog, "f")));
+	}
+}
@@ -0,0 +1,170 @@
+package notquitejava.optimization;
+
+import main.NotQuiteJavaCompiler;
+import minillvm.analysis.Checks;
+import minillvm.analysis.ControlFlow;
+import minillvm.analysis.Dominators;
+import minillvm.analysis.Loops;
+import minillvm.ast.*;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OptimizationTestHelper {
+
+	/**
+	 * Compiles a program with the optimizations and checks the result.
+	 */
+	public static Prog compile(String name, String input) throws Exception {
+		return compile(name, input, true);
+	}
+
+	/**
+	 * Compiles a program with or without the optimizations and checks the result.
+	 */
+	public static Prog compile(String name, String input, boolean optimize) throws Exception {
+		NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+		compiler.setOptimize(optimize);
+		compiler.compileString(name, input);
+		assertEquals(Collections.emptyList(), compiler.getSyntaxErrors());
+		assertEquals(Collections.emptyList(), compiler.getTypeErrors());
+		Prog prog = compiler.getLlvmProg();
+		new Checks().checkProgram(prog);
+		return prog;
+	}
+
+	public static Proc findProc(Prog prog, String name) {
+		for (Proc proc : prog.getProcedures()) {
+			if (proc.getName().equals(name)) {
+				return proc;
+			}
+		}
+		throw new AssertionError("no procedure " + name);
+	}
+
+	/**
+	 * Counts the procedures whose name starts with the prefix.
+	 */
+	public static int countProcs(Prog prog, String prefix) {
+		int count = 0;
+		for (Proc proc : prog.getProcedures()) {
+			if (proc.getName().startsWith(prefix)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the branches on a comparison with null.
+	 */
+	public static int countNullChecks(Proc proc) {
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof Branch && ((Branch) instr).getCondition() instanceof VarRef) {
+					Element def = ((VarRef) ((Branch) instr).getCondition()).getVariable().getParent();
+					if (def instanceof BinaryOperation
+							&& ((BinaryOperation) def).getOperator() instanceof Eq
+							&& ((BinaryOperation) def).getRight() instanceof Nullpointer) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the error blocks with a message starting with the given prefix.
+	 */
+	public static int countErrors(Proc proc, String messagePrefix) {
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof HaltWithError
+						&& ((HaltWithError) instr).getMsg().startsWith(messagePrefix)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the instructions of the given class.
+	 */
+	public static int countInstructions(Proc proc, Class<? extends Instruction> c) {
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (c.isInstance(instr)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the instructions of the given class in blocks, which are part of a loop.
+	 */
+	public static int countInstructionsInLoops(Proc proc, Class<? extends Instruction> c) {
+		Loops loops = new Loops(ControlFlow.getPredecessors(proc), new Dominators(proc));
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			if (loops.getLoopFor(block) == null) {
+				continue;
+			}
+			for (Instruction instr : block) {
+				if (c.isInstance(instr)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Checks that the definition of each temporary dominates its uses, which {@link Checks}
+	 * does not verify. The value of a phi choice is used at the end of the predecessor.
+	 */
+	public static void assertDefinitionsDominateUses(Proc proc) {
+		Dominators dominators = new Dominators(proc);
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			if (!dominators.isReachable(block)) {
+				continue;
+			}
+			block.accept(new Element.DefaultVisitor() {
+				@Override
+				public void visit(VarRef ref) {
+					Element def = ref.getVariable().getParent();
+					if (!(def instanceof Assign)) {
+						return;
+					}
+					BasicBlock useBlock = ref.getParent() instanceof PhiNodeChoice
+							? ((PhiNodeChoice) ref.getParent()).getLabel() : block;
+					BasicBlock defBlock = (BasicBlock) def.getParent();
+					assertTrue(ref + " in " + useBlock.getName() + " is not dominated by "
+							+ defBlock.getName(), dominators.dominates(defBlock, useBlock));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the first instruction of the given class in block order.
+	 */
+	public static <T extends Instruction> T findFirst(Proc proc, Class<T> c) {
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (c.isInstance(instr)) {
+					return c.cast(instr);
+				}
+			}
+		}
+		throw new AssertionError("no " + c.getSimpleName() + " in " + proc.getName());
+	}
+}
@@ -0,0 +1,200 @@
+package notquitejava.optimization;
+
+import main.NotQuiteJavaCompiler;
+import minillvm.analysis.Checks;
+import minillvm.ast.*;
+import minillvm.optimization.PassManager;
+import minillvm.optimization.ShadowStack;
+import minillvm.printer.Allocator;
+import minillvm.printer.PrettyPrinter;
+import notquitejava.translation.TranslationTestHelper;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+public class ShadowStackTests {
+
+	private static final String LIST = "class Node {\n"
+			+ "Node next;\n"
+			+ "int value;\n"
+			+ "}\n";
+
+	private static Prog compileWithFrames(String name, String input) throws Exception {
+		Prog prog = compile(name, input);
+		new PassManager().add(new ShadowStack()).run(prog);
+		new Checks().checkProgram(prog);
+		return prog;
+	}
+
+	private static Global findGlobal(Prog prog, String prefix) {
+		for (Global global : prog.getGlobals()) {
+			if (global.getName().startsWith(prefix)) {
+				return global;
+			}
+		}
+		throw new AssertionError("no global " + prefix);
+	}
+
+	/**
+	 * Counts the stores to the top of the shadow stack, one push and one pop per return.
+	 */
+	private static int countFrameUpdates(Proc proc) {
+		int count = 0;
+		for (BasicBlock block : proc.getBasicBlocks()) {
+			for (Instruction instr : block) {
+				if (instr instanceof Store && ((Store) instr).getAddress() instanceof GlobalRef
+						&& ((GlobalRef) ((Store) instr).getAddress()).getGlobal().getName()
+						.equals("nqj_gc_top")) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static int intValue(Global global, int index) {
+		return ((ConstInt) ((ConstStruct) global.getInitialValue()).getValues().get(index))
+				.getIntVal();
+	}
+
+	@Test
+	public void listIsRooted() throws Exception {
+		Prog prog = compileWithFrames("List.java", LIST
+				+ "int main() {\n"
+				+ "Node list;\n"
+				+ "Node n;\n"
+				+ "int i;\n"
+				+ "list = null;\n"
+				+ "i = 0;\n"
+				+ "while (i < 10) {\n"
+				+ "n = new Node();\n"
+				+ "n.value = i;\n"
+				+ "n.next = list;\n"
+				+ "list = n;\n"
+				+ "i = i + 1;\n"
+				+ "}\n"
+				+ "printInt(list.value);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		assertEquals(2, countFrameUpdates(findProc(prog, "main")));
+		// one pointer field after the vtable pointer
+		Global map = findGlobal(prog, "typemap_Node");
+		assertEquals(1, intValue(map, 0));
+		assertEquals(-1, intValue(map, 1));
+		assertEquals(8, intValue(map, 2));
+	}
+
+	@Test
+	public void arrayOfObjectsIsScanned() throws Exception {
+		Prog prog = compileWithFrames("Nodes.java", LIST
+				+ "int main() {\n"
+				+ "Node[] nodes;\n"
+				+ "nodes = new Node[3];\n"
+				+ "nodes[0] = new Node();\n"
+				+ "printInt(nodes.length);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Global map = findGlobal(prog, "typemap_array");
+		assertEquals(0, intValue(map, 0));
+		assertEquals(8, intValue(map, 1));
+	}
+
+	@Test
+	public void noFrameWithoutPointers() throws Exception {
+		Prog prog = compileWithFrames("Sum.java", "int main() {\n"
+				+ "printInt(sum(5));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int sum(int n) {\n"
+				+ "int s;\n"
+				+ "s = 0;\n"
+				+ "while (0 < n) { s = s + n; n = n - 1; }\n"
+				+ "return s;\n"
+				+ "}\n");
+		assertEquals(0, countFrameUpdates(findProc(prog, "sum")));
+		assertEquals(0, countFrameUpdates(findProc(prog, "main")));
+	}
+
+	@Test
+	public void baseOfFieldAddressIsRootedAcrossAllocation() throws Exception {
+		// a.f = new B(), where a is not used after the store
+		TypeStruct b = Ast.TypeStruct("B", Ast.StructFieldList(
+				Ast.StructField(Ast.TypePointer(Ast.TypeByte()), "vtablePtr"),
+				Ast.StructField(Ast.TypeInt(), "v")));
+		TypeStruct a = Ast.TypeStruct("A", Ast.StructFieldList(
+				Ast.StructField(Ast.TypePointer(Ast.TypeByte()), "vtablePtr"),
+				Ast.StructField(Ast.TypePointer(b), "f")));
+		Parameter base = Ast.Parameter(Ast.TypePointer(a), "a");
+		TemporaryVar field = Ast.TemporaryVar("f");
+		TemporaryVar mem = Ast.TemporaryVar("mem");
+		TemporaryVar object = Ast.TemporaryVar("b");
+		BasicBlock block = Ast.BasicBlock(
+				Ast.GetElementPtr(field, Ast.VarRef(base),
+						Ast.OperandList(Ast.ConstInt(0), Ast.ConstInt(1))),
+				Ast.AllocZeroed(mem, Ast.Sizeof(b)),
+				Ast.Bitcast(object, Ast.TypePointer(b), Ast.VarRef(mem)),
+				Ast.Store(Ast.VarRef(field), Ast.VarRef(object)),
+				Ast.ReturnVoid());
+		block.setName("entry");
+		Proc set = Ast.Proc("set", Ast.TypeVoid(), Ast.ParameterList(base),
+				Ast.BasicBlockList(block));
+		Prog prog = Ast.Prog(Ast.TypeStructList(b, a), Ast.GlobalList(), Ast.ProcList(set));
+		new PassManager().add(new ShadowStack()).run(prog);
+		new Checks().checkProgram(prog);
+		assertEquals(2, countFrameUpdates(set));
+	}
+
+	@Test
+	public void churningProgramStaysBounded() throws Exception {
+		// the list is rebuilt 50 times, every tenth node has an array holding a node,
+		// which is reachable only through the array
+		String program = LIST.replace("int value;", "int value;\nNode[] kids;")
+				+ "int main() {\n"
+				+ "Node list; Node n; int round; int i; int s;\n"
+				+ "round = 0; s = 0;\n"
+				+ "while (round < 50) {\n"
+				+ "list = null; i = 0;\n"
+				+ "while (i < 1000) {\n"
+				+ "n = new Node(); n.value = i; n.next = list; list = n;\n"
+				+ "if (i - i / 10 * 10 == 0) {\n"
+				+ "n.kids = new Node[2]; n.kids[1] = new Node(); n.kids[1].value = 1;\n"
+				+ "} else { }\n"
+				+ "i = i + 1;\n"
+				+ "}\n"
+				+ "while (!(list == null)) {\n"
+				+ "s = s + list.value;\n"
+				+ "if (list.kids == null) { } else { s = s + list.kids[1].value; }\n"
+				+ "list = list.next;\n"
+				+ "}\n"
+				+ "round = round + 1;\n"
+				+ "}\n"
+				+ "printInt(s);\n"
+				+ "return 0;\n"
+				+ "}\n";
+		Map<String, String> environment = Map.of("NQJ_GC_STRESS", "1", "NQJ_GC_STATS", "1");
+		Pattern stats = Pattern.compile("peak heap: (\\d+) bytes\n");
+		for (boolean optimize : new boolean[] {false, true}) {
+			NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+			compiler.parseArguments("-gc", "Churn.java");
+			compiler.setOptimize(optimize);
+			compiler.compileString("Churn.java", program);
+			assertEquals(Collections.emptyList(), compiler.getTypeErrors());
+			String code = PrettyPrinter.programToString(compiler.getLlvmProg(), Allocator.GC);
+			String output = TranslationTestHelper.runWithGarbageCollector(code,
+					"Churn" + (optimize ? "O" : "O0"), environment);
+
+			Matcher peak = stats.matcher(output);
+			assertTrue(output, peak.find());
+			// about 1100 nodes and 100 arrays are live, 50 times as much is allocated
+			long peakBytes = Long.parseLong(peak.group(1));
+			assertTrue(output, 0 < peakBytes && peakBytes < 64 * 1024);
+			assertEquals("24980000\n", peak.replaceFirst(""));
+		}
+	}
+}
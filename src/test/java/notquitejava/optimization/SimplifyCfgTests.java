@@ -0,0 +1,53 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+public class SimplifyCfgTests {
+
+	@Test
+	public void foldedIfBecomesSingleBlock() throws Exception {
+		Prog prog = compile("Fold.java", "int main() {\n"
+				+ "int x;\n"
+				+ "x = 3 + 4;\n"
+				+ "if (x < 10) { printInt(1); } else { printInt(2); }\n"
+				+ "printInt(x);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(1, main.getBasicBlocks().size());
+		assertEquals(0, countInstructions(main, Jump.class));
+	}
+
+	@Test
+	public void emptyBranchesAreRemoved() throws Exception {
+		Prog prog = compile("Empty.java", "int main() {\n"
+				+ "printInt(f(3));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int f(int n) {\n"
+				+ "if (n < 0) { } else { }\n"
+				+ "return n;\n"
+				+ "}\n");
+		Proc f = findProc(prog, "f");
+		assertEquals(1, f.getBasicBlocks().size());
+		assertEquals(0, countInstructions(f, Branch.class));
+	}
+
+	@Test
+	public void loopsAreKept() throws Exception {
+		Prog prog = compile("Loop.java", "int main() {\n"
+				+ "int i;\n"
+				+ "i = 0;\n"
+				+ "while (i < 10) { printInt(i); i = i + 1; }\n"
+				+ "return 0;\n"
+				+ "}\n");
+		Proc main = findProc(prog, "main");
+		assertEquals(1, countInstructions(main, Branch.class));
+		assertEquals(1, countInstructions(main, PhiNode.class));
+		assertEquals(4, main.getBasicBlocks().size());
+	}
+}
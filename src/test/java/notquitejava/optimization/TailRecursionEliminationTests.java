@@ -0,0 +1,69 @@
+package notquitejava.optimization;
+
+import minillvm.ast.*;
+import org.junit.Test;
+
+import static notquitejava.optimization.OptimizationTestHelper.*;
+import static org.junit.Assert.*;
+
+public class TailRecursionEliminationTests {
+
+	@Test
+	public void tailRecursionBecomesLoop() throws Exception {
+		Prog prog = compile("Sum.java", "int main() {\n"
+				+ "printInt(sumTo(100000, 0));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int sumTo(int n, int acc) {\n"
+				+ "if (n < 1) { return acc; } else { }\n"
+				+ "return sumTo(n - 1, acc + n);\n"
+				+ "}\n");
+		Proc sumTo = findProc(prog, "sumTo");
+		assertEquals(0, countInstructions(sumTo, Call.class));
+		assertEquals(1, countInstructionsInLoops(sumTo, Branch.class));
+	}
+
+	@Test
+	public void accumulatedRecursion() throws Exception {
+		Prog prog = compile("Fact.java", "int main() {\n"
+				+ "printInt(fact(10));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int fact(int n) {\n"
+				+ "if (n < 2) { return 1; } else { }\n"
+				+ "return n * fact(n - 1);\n"
+				+ "}\n");
+		assertEquals(0, countInstructions(findProc(prog, "fact"), Call.class));
+	}
+
+	@Test
+	public void onlyLastCallOfFibonacci() throws Exception {
+		Prog prog = compile("Fib.java", "int main() {\n"
+				+ "printInt(fib(10));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int fib(int n) {\n"
+				+ "if (n < 2) { return n; } else { }\n"
+				+ "return fib(n - 1) + fib(n - 2);\n"
+				+ "}\n");
+		assertEquals(1, countInstructions(findProc(prog, "fib"), Call.class));
+	}
+
+	@Test
+	public void otherTailCallsAreMarked() throws Exception {
+		Prog prog = compile("Tail.java", "int main() {\n"
+				+ "printInt(g(10));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int g(int n) {\n"
+				+ "return fib(n + 1);\n"
+				+ "}\n"
+				+ "int fib(int n) {\n"
+				+ "if (n < 2) { return n; } else { }\n"
+				+ "return fib(n - 1) + fib(n - 2);\n"
+				+ "}\n");
+		Call call = findFirst(findProc(prog, "g"), Call.class);
+		assertTrue(call.getTail());
+		assertTrue(prog.toString().contains("tail call"));
+	}
+}
@@ -49,6 +49,14 @@ public class DocExamples {
 		print(block);
 	}
 
+	@Test
+	public void allocZeroed() {
+		BasicBlock block = BasicBlock(
+				AllocZeroed(TemporaryVar("t"), ConstInt(100))
+		);
+		print(block);
+	}
+
 	@Test
 	public void alloca() {
 		BasicBlock block = BasicBlock(
@@ -167,6 +175,30 @@ public class DocExamples {
 		print(block);
 	}
 
+	@Test
+	public void select() {
+		Parameter c = Parameter(TypeBool(), "c");
+		TemporaryVar x = TemporaryVar("x");
+		BasicBlock block = BasicBlock(
+				Select(x, VarRef(c), ConstInt(1), ConstInt(2))
+		);
+		print(block);
+	}
+
+	@Test
+	public void weightedBranch() {
+		Parameter c = Parameter(TypeBool(), "c");
+		BasicBlock ifTrue = BasicBlock();
+		ifTrue.setName("ifTrue");
+		BasicBlock ifFalse = BasicBlock();
+		ifFalse.setName("ifFalse");
+		Branch branch = Branch(VarRef(c), ifTrue, ifFalse);
+		branch.setTrueWeight(1);
+		branch.setFalseWeight(2000);
+		BasicBlock block = BasicBlock(branch);
+		print(block);
+	}
+
 
 	@Test
 	public void jump() {
@@ -1,12 +1,22 @@
 package notquitejava.translation;
 
 
+import minillvm.ast.AllocZeroed;
+import minillvm.ast.Proc;
+import minillvm.ast.Prog;
+import minillvm.ast.Store;
+import minillvm.ast.TypeStruct;
 import org.junit.AfterClass;
 import org.junit.Test;
 
 import java.util.List;
 import java.util.stream.Stream;
 
+import static notquitejava.optimization.OptimizationTestHelper.compile;
+import static notquitejava.optimization.OptimizationTestHelper.countInstructions;
+import static notquitejava.optimization.OptimizationTestHelper.countProcs;
+import static org.junit.Assert.assertEquals;
+
 public class FunctionTests {
 
 	@Test
@@ -77,12 +87,142 @@ public class FunctionTests {
         );
     }
 
+	private static final List<String> CLASSES = List.of(
+			"class A {",
+			"int x;",
+			"int get() { return x; }",
+			"int set(int v) { x = v; return 0; }",
+			"int id() { return 1; }",
+			"}",
+			"class B extends A {",
+			"int x;",
+			"int get() { return x + 100; }",
+			"int setB(int v) { x = v; return 0; }",
+			"}",
+			"class C extends B {",
+			"int set(int v) { x = v * 10; return 0; }",
+			"int id() { return 3; }",
+			"}"
+	);
+
+	@Test
+	public void inheritedMethodsAreTranslatedOnce() throws Exception {
+		String[] statements = {
+				"C c;",
+				"int r;",
+				"c = new C();",
+				"r = c.setB(5);",
+				"printInt(c.get() + c.id());"
+		};
+		testStatements(CLASSES, statements);
+		Prog prog = compile("Test.java", program(CLASSES, statements), false);
+		// get is only declared in A and B, setB only in B
+		assertEquals(2, countProcs(prog, "get_"));
+		assertEquals(1, countProcs(prog, "setB_"));
+		assertEquals(0, countProcs(prog, "get_C"));
+	}
+
+	@Test
+	public void shadowedFieldsAndOverridesThroughSuperclass() throws Exception {
+		testStatements(CLASSES,
+				"A a;",
+				"B b;",
+				"C c;",
+				"int r;",
+				"b = new B();",
+				"a = b;",
+				"r = a.set(1);",
+				"r = b.setB(2);",
+				// the field of A and the field of B have their own slots
+				"printInt(a.get());",
+				"printInt(a.x);",
+				"printInt(b.x);",
+				"printInt(a.id());",
+				"c = new C();",
+				"a = c;",
+				// C overrides set of A, writing the field of B
+				"r = a.set(4);",
+				"printInt(a.get());",
+				"printInt(a.x);",
+				"printInt(a.id());"
+		);
+	}
+
+	@Test
+	public void oneArrayStructPerComponentType() throws Exception {
+		List<String> procs = List.of(
+				"class A { int v; }",
+				"int f() { int[] x; x = new int[2]; return x.length; }",
+				"int g() { A[] y; y = new A[3]; return y.length; }"
+		);
+		String[] statements = {
+				"int[] x;",
+				"A[] y;",
+				"boolean[] z;",
+				"x = new int[4];",
+				"y = new A[5];",
+				"z = new boolean[6];",
+				"printInt(f() + g() + x.length + y.length + z.length);"
+		};
+		testStatements(procs, statements);
+		Prog prog = compile("Test.java", program(procs, statements), false);
+		assertEquals(3, countProcs(prog, "newArray"));
+		int arrayStructs = 0;
+		for (TypeStruct struct : prog.getStructTypes()) {
+			if (struct.getName().startsWith("array_")) {
+				arrayStructs++;
+			}
+		}
+		assertEquals(3, arrayStructs);
+	}
+
+	@Test
+	public void freshObjectsAndArraysReadDefaults() throws Exception {
+		List<String> procs = List.of(
+				"class A { int i; boolean b; A next; int[] a; }"
+		);
+		String[] statements = {
+				"A o;",
+				"int[] x;",
+				"boolean[] y;",
+				"A[] z;",
+				"int i;",
+				"int s;",
+				"o = new A();",
+				"printInt(o.i);",
+				"if (o.b) { printInt(1); } else { printInt(0); }",
+				"if (o.next == null) { printInt(1); } else { printInt(0); }",
+				"if (o.a == null) { printInt(1); } else { printInt(0); }",
+				"x = new int[100000];",
+				"y = new boolean[3];",
+				"z = new A[2];",
+				"i = 0;",
+				"s = 0;",
+				"while (i < x.length) { s = s + x[i]; i = i + 1; }",
+				"printInt(s);",
+				"if (!y[0] && !y[2]) { printInt(1); } else { printInt(0); }",
+				"if (z[1] == null) { printInt(1); } else { printInt(0); }"
+		};
+		testStatements(procs, statements);
+		// only the vtable pointer or the length is written after the allocation
+		Prog prog = compile("Test.java", program(procs, statements), false);
+		for (Proc proc : prog.getProcedures()) {
+			if (proc.getName().startsWith("new")) {
+				assertEquals(1, countInstructions(proc, AllocZeroed.class));
+				assertEquals(1, countInstructions(proc, Store.class));
+			}
+		}
+	}
+
 	private void testStatements(List<String> procs, String...inputLines) throws Exception {
-		String input = String.join("\n", procs)
-                + "int main() {\n"
-                + String.join("\n", inputLines)
-                + "\nreturn 0;\n}\n";
-        TranslationTestHelper.testLLVMTranslation("Test.java", input);
+		TranslationTestHelper.testLLVMTranslation("Test.java", program(procs, inputLines));
+	}
+
+	private static String program(List<String> procs, String... inputLines) {
+		return String.join("\n", procs)
+				+ "int main() {\n"
+				+ String.join("\n", inputLines)
+				+ "\nreturn 0;\n}\n";
 	}
 
 	@AfterClass
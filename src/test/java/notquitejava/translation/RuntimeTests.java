@@ -0,0 +1,189 @@
+package notquitejava.translation;
+
+import main.NotQuiteJavaCompiler;
+import minillvm.ast.*;
+import minillvm.printer.Allocator;
+import minillvm.printer.PrettyPrinter;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static minillvm.ast.Ast.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs programs using the runtime checks and routines emitted by the printer.
+ */
+public class RuntimeTests {
+
+	private static Prog compile(NotQuiteJavaCompiler compiler, String input) throws Exception {
+		compiler.compileString("Runtime.java", input);
+		assertEquals(Collections.emptyList(), compiler.getSyntaxErrors());
+		assertEquals(Collections.emptyList(), compiler.getTypeErrors());
+		return compiler.getLlvmProg();
+	}
+
+	/**
+	 * A program printing 1 and halting with the message, which has other error messages
+	 * in an unused procedure, so the codes share the table of formats.
+	 */
+	private static Prog haltingProgram(String message, String... otherMessages) {
+		BasicBlock start = BasicBlock(Print(ConstInt(1)), HaltWithError(message));
+		start.setName("start");
+		Proc main = Proc("main", TypeInt(), ParameterList(), BasicBlockList(start));
+		BasicBlockList others = BasicBlockList();
+		for (String other : otherMessages) {
+			BasicBlock block = BasicBlock(HaltWithError(other));
+			block.setName("error");
+			others.add(block);
+		}
+		Proc unused = Proc("unused", TypeVoid(), ParameterList(), others);
+		return Prog(TypeStructList(), GlobalList(), ProcList(main, unused));
+	}
+
+	@Test
+	public void messageIsRebuiltFromCode() throws Exception {
+		String[] others = {"Division by zero in line 3", "Index out of bounds error in line 12",
+				"Array Size must be positive"};
+		assertEquals("1\nIndex out of bounds error in line 40\n",
+				TranslationTestHelper.runLlvmCodeAndGetError(
+						haltingProgram("Index out of bounds error in line 40", others).toString()));
+		assertEquals("1\nDivision by zero in line 123456\n",
+				TranslationTestHelper.runLlvmCodeAndGetError(
+						haltingProgram("Division by zero in line 123456", others).toString()));
+		assertEquals("1\nArray Size must be positive\n",
+				TranslationTestHelper.runLlvmCodeAndGetError(
+						haltingProgram("Array Size must be positive", others).toString()));
+	}
+
+	@Test
+	public void messageWithTooLargeCodeIsKept() throws Exception {
+		String[] others = {"Division by zero in line 3", "Index out of bounds error in line 12",
+				"Array Size must be positive"};
+		// 2000000000 * 3 formats does not fit into 32 bits, the line is outside of int
+		String tooLarge = "Division by zero in line 2000000000";
+		String noInt = "Index out of bounds error in line 99999999999";
+		for (String message : new String[] {tooLarge, noInt}) {
+			String code = haltingProgram(message, others).toString();
+			assertTrue(code, code.contains(message));
+			assertEquals("1\n" + message + "\n",
+					TranslationTestHelper.runLlvmCodeAndGetError(code));
+		}
+		// the code is above the largest signed int, but fits into 32 unsigned bits
+		String unsigned = "Division by zero in line 1400000000";
+		String code = haltingProgram(unsigned, others).toString();
+		assertFalse(code, code.contains(unsigned));
+		assertEquals("1\n" + unsigned + "\n", TranslationTestHelper.runLlvmCodeAndGetError(code));
+	}
+
+	@Test
+	public void percentInMessageIsEscaped() throws Exception {
+		Prog prog = haltingProgram("100% %d %s wrong in line 7", "50% in line 2");
+		String code = prog.toString();
+		assertTrue(code, code.contains("100%% %%d %%s wrong in line %d"));
+		assertEquals("1\n100% %d %s wrong in line 7\n",
+				TranslationTestHelper.runLlvmCodeAndGetError(code));
+	}
+
+	@Test
+	public void printMinValue() throws Exception {
+		TranslationTestHelper.testLLVMTranslation("MinValue.java", "int main() {\n"
+				+ "int x;\n"
+				+ "x = 0 - 2147483647 - 1;\n"
+				+ "printInt(x);\n"
+				+ "printInt(x + 1);\n"
+				+ "printInt(0);\n"
+				+ "printInt(2147483647);\n"
+				+ "return 0;\n"
+				+ "}\n");
+	}
+
+	@Test
+	public void outputLargerThanBufferIsFlushed() throws Exception {
+		// more than 64 KiB, so the buffer is written when full and the rest at exit
+		TranslationTestHelper.testLLVMTranslation("Large.java", "int main() {\n"
+				+ "int i;\n"
+				+ "i = 0;\n"
+				+ "while (i < 20000) { printInt(i * 1000); i = i + 1; }\n"
+				+ "return 0;\n"
+				+ "}\n");
+	}
+
+	@Test
+	public void outputIsFlushedBeforeError() throws Exception {
+		Prog prog = compile(new NotQuiteJavaCompiler(), "int main() {\n"
+				+ "int a;\n"
+				+ "a = 0;\n"
+				+ "printInt(1);\n"
+				+ "printInt(2);\n"
+				+ "printInt(5 / a);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		String output = TranslationTestHelper.runLlvmCodeAndGetError(prog.toString());
+		assertTrue(output, output.startsWith("1\n2\nDivision by zero in line "));
+	}
+
+	@Test
+	public void arenaAllocator() throws Exception {
+		NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+		assertEquals("Arena.java", compiler.parseArguments("-allocator=arena", "Arena.java"));
+		assertEquals(Allocator.ARENA, compiler.getAllocator());
+		Prog prog = compile(compiler, "class Node {\n"
+				+ "Node next;\n"
+				+ "int value;\n"
+				+ "}\n"
+				+ "int main() {\n"
+				+ "Node list; Node n; int i; int s; int[] big;\n"
+				+ "list = null;\n"
+				+ "i = 0;\n"
+				// more than one chunk of the arena
+				+ "while (i < 1000000) { n = new Node(); n.value = 1; n.next = list; list = n;"
+				+ " i = i + 1; }\n"
+				+ "s = 0;\n"
+				+ "i = 0;\n"
+				+ "while (i < 1000000) { s = s + list.value; list = list.next; i = i + 1; }\n"
+				+ "printInt(s);\n"
+				// larger than a chunk, so it gets its own mapping
+				+ "big = new int[5000000];\n"
+				+ "big[4999999] = 7;\n"
+				+ "printInt(big[4999999] + big[0] + big.length);\n"
+				+ "return 0;\n"
+				+ "}\n");
+		String code = PrettyPrinter.programToString(prog, compiler.getAllocator());
+		assertTrue(code.contains("call i8* @nqj_alloc("));
+		assertFalse(code.contains("@calloc(i32 1"));
+		assertEquals("1000000\n5000007\n",
+				TranslationTestHelper.runLlvmCodeAndGetoutput(code, ""));
+	}
+
+	@Test
+	public void runtimeChecksAreUnlikely() throws Exception {
+		String program = "int main() {\n"
+				+ "int[] a;\n"
+				+ "a = new int[3];\n"
+				+ "printInt(get(a, 2));\n"
+				+ "return 0;\n"
+				+ "}\n"
+				+ "int get(int[] a, int i) {\n"
+				+ "return a[i];\n"
+				+ "}\n";
+		NotQuiteJavaCompiler compiler = new NotQuiteJavaCompiler();
+		compiler.setOptimize(false);
+		String code = compile(compiler, program).toString();
+		// the error edge is the true edge of the null check and the false edge of the bounds check
+		Matcher nullCheck = Pattern.compile("br i1 %isNull\\S*, label %whenIsNull\\S*, "
+				+ "label %notNull\\S*, !prof !(\\d+)").matcher(code);
+		Matcher boundsCheck = Pattern.compile("br i1 %inBounds\\S*, label %indexInRange\\S*, "
+				+ "label %outOfBounds\\S*, !prof !(\\d+)").matcher(code);
+		assertTrue(code, nullCheck.find());
+		assertTrue(code, boundsCheck.find());
+		assertTrue(code, code.contains("\n!" + nullCheck.group(1)
+				+ " = !{!\"branch_weights\", i32 1, i32 2000}"));
+		assertTrue(code, code.contains("\n!" + boundsCheck.group(1)
+				+ " = !{!\"branch_weights\", i32 2000, i32 1}"));
+		// the metadata is accepted by llvm
+		TranslationTestHelper.testLLVMTranslation("Weights.java", program);
+	}
+}
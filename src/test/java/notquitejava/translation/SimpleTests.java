@@ -49,6 +49,30 @@ public class SimpleTests {
 		);
 	}
 
+	@Test
+	public void arrayIndexAtBounds() throws Exception {
+		testStatements(
+				"int[] a;",
+				"a = new int[3];",
+				"a[0] = 1;",
+				"a[2] = 3;",
+				"printInt(a[0] + a[2]);",
+				"a[3] = 4;"
+		);
+	}
+
+	@Test
+	public void negativeArrayIndex() throws Exception {
+		testStatements(
+				"int[] a;",
+				"int i;",
+				"a = new int[3];",
+				"i = 0 - 1;",
+				"printInt(a.length);",
+				"printInt(a[i]);"
+		);
+	}
+
 	private void testStatements(String...inputLines) throws Exception {
 		String input = "int main() {\n"
 				+ String.join("\n", inputLines)
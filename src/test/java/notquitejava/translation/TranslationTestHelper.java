@@ -21,6 +21,7 @@ import java.nio.file.Path;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.Map;
@@ -242,13 +243,54 @@ public class TranslationTestHelper {
 	}
 
 	public static String runLlvmCodeAndGetoutput(Prog llp, String programInput) throws Exception {
-		byte[] code = llp.toString().getBytes();
+		return runLlvmCodeAndGetoutput(llp.toString(), programInput);
+	}
+
+	public static String runLlvmCodeAndGetoutput(String llvmCode, String programInput) throws Exception {
+		byte[] code = llvmCode.getBytes();
 		File tempFile = File.createTempFile("llvm", "ll");
 		Files.write(tempFile.toPath(), code);
 		byte[] output = runProgram(new ProcessBuilder(LLVM_LLI_EXE, tempFile.getAbsolutePath()), programInput.getBytes());
 		return normalize(new String(output));
 	}
 
+	/**
+	 * Runs the program, which must stop with a runtime error, and returns its output
+	 * including the error message.
+	 */
+	public static String runLlvmCodeAndGetError(String llvmCode) throws Exception {
+		try {
+			String output = runLlvmCodeAndGetoutput(llvmCode, "");
+			throw new AssertionError("Program stopped normally with output:\n" + output);
+		} catch (ProgramExecutionException e) {
+			assertEquals(e.toString(), 222, e.exitCode);
+			return normalize(e.getOutput());
+		}
+	}
+
+	/**
+	 * Links the program with the garbage collector of the runtime and runs it with the
+	 * environment variables set. Returns the output followed by the error output.
+	 */
+	public static String runWithGarbageCollector(String llvmCode, String name,
+			Map<String, String> environment) throws Exception {
+		File llFile = new File(testOutputFolder, name + ".ll");
+		File objFile = new File(testOutputFolder, name + ".o");
+		File runtimeFile = new File(testOutputFolder, name + "_gc.c");
+		File exeFile = new File(testOutputFolder, name + EXE_SUFFIX);
+		Files.write(llFile.toPath(), llvmCode.getBytes());
+		try (InputStream in = NotQuiteJavaCompiler.class.getResourceAsStream("/runtime/nqj_gc.c")) {
+			Files.copy(in, runtimeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		runProgram(new ProcessBuilder(LLVM_LLC_EXE, "-O0", "--filetype=obj", "-o", objFile.getAbsolutePath(), llFile.getAbsolutePath()), new byte[0]);
+		runProgram(new ProcessBuilder(CC_EXE, "-O2", "-o", exeFile.getAbsolutePath(), objFile.getAbsolutePath(), runtimeFile.getAbsolutePath()), new byte[0]);
+
+		ProcessBuilder pb = new ProcessBuilder(exeFile.getAbsolutePath()).redirectErrorStream(true);
+		pb.environment().putAll(environment);
+		return normalize(new String(runProgram(pb, new byte[0])));
+	}
+
 	public static void compileLlvm(Prog llp, String name) throws Exception {
 		byte[] code = llp.toString().getBytes();
 		File llFile = new File(debugOutputFolder, name + ".ll");